@@ -0,0 +1,353 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+
+/**
+ * The cases of the JMH benchmarks in benchmarks/, over a grid of library
+ * sizes:
+ *   ingest:  parsing a synthetic iTunes export (UTF-16, sequential and
+ *            parallel) into a catalog, and loading a Markov chain file
+ *   sample:  genre picks of each GenreSampler, no exhaustion
+ *   shuffle: whole-library shuffles, so every genre runs out of songs
+ *   exhaust: many tiny genres, so nearly every few picks empty a genre;
+ *            compares the original dense in-place matrix rewrite with
+ *            the samplers
+ *
+ * JMH only runs benchmarks in a named package, which can't refer to the
+ * shuffler's classes in the default package, so this class builds each
+ * case as a LongSupplier, found by name at setup (see benchmarks.Cases).
+ * A run of a case returns how many units it processed.
+ *
+ * Exports and chains are generated from fixed seeds and kept in the
+ * shuffle-bench folder of the temp directory for later runs; a density of
+ * 1 is written as a dense chain file, anything less as a sparse one.
+ */
+public final class BenchmarkCases {
+    /* The original shuffleSongs loop: linear scan, O(G^2) matrix rewrite. */
+    static final class RewriteSampler extends GenreSampler {
+        private final double[][] markov;
+        private int emptyGenres;
+
+        RewriteSampler(double[][] markov) {
+            super(MarkovChain.dense(markov));
+            this.markov = markov;
+        }
+
+        GenreSampler copy() {
+            return new RewriteSampler(BenchmarkCases.copy(markov));
+        }
+
+        int next(int row, Random rand) {
+            int i = -1;
+            final double randDouble = rand.nextDouble();
+            for (double acc = 0.0; randDouble >= acc; acc += markov[row][++i]);
+            return i;
+        }
+
+        void exhaust(int genre) {
+            ++emptyGenres;
+            for (int j = 0; j < markov.length; ++j) {
+                final double probSplit = markov[j][genre] /
+                                            (markov.length - emptyGenres);
+                for (int k = 0; k < markov.length; ++k) {
+                    if (k == genre) {
+                        markov[j][k] = 0.0;
+                    } else if (markov[j][k] != 0.0) {
+                        markov[j][k] += probSplit;
+                    }
+                }
+            }
+        }
+    }
+
+    private BenchmarkCases() {}
+
+    /* Draws every song of the library, returns the number of picks. */
+    static int drain(GenreSampler sampler, int[] sizes, Random rand) {
+        final int[] lengths = sizes.clone();
+        int total = 0;
+        for (final int size : sizes) {
+            total += size;
+        }
+
+        int index = rand.nextInt(lengths.length);
+        for (int q = 0; q < total; ++q) {
+            index = sampler.next(index, rand);
+            if (--lengths[index] == 0) {
+                sampler.exhaust(index);
+            }
+        }
+        return total;
+    }
+
+    static double[][] uniform(int genres) {
+        final double[][] markov = new double[genres][genres];
+        for (final double[] row : markov) {
+            Arrays.fill(row, 1.0 / genres);
+        }
+        return markov;
+    }
+
+    static double[][] copy(double[][] markov) {
+        final double[][] copy = new double[markov.length][];
+        for (int i = 0; i < markov.length; ++i) {
+            copy[i] = markov[i].clone();
+        }
+        return copy;
+    }
+
+    /* A random chain with max(1, density * genres) nonzero entries per row. */
+    static double[][] random(int genres, double density, long seed) {
+        final Random rand = new Random(seed);
+        final int d = Math.max(1, Math.min(genres, (int) Math.round(density * genres)));
+        final int[] cols = new int[genres];
+        final double[][] markov = new double[genres][genres];
+        for (int i = 0; i < genres; ++i) {
+            for (int j = 0; j < genres; ++j) {
+                cols[j] = j;
+            }
+            // First d of a partial Fisher-Yates shuffle are the row's columns
+            double total = 0.0;
+            for (int j = 0; j < d; ++j) {
+                final int k = j + rand.nextInt(genres - j);
+                final int col = cols[k];
+                cols[k] = cols[j];
+                cols[j] = col;
+                total += markov[i][col] = 0.05 + rand.nextDouble();
+            }
+            for (int j = 0; j < d; ++j) {
+                markov[i][cols[j]] /= total;
+            }
+        }
+        return markov;
+    }
+
+    static String genreName(int genre) {
+        return String.format("Genre %04d", genre);
+    }
+
+    /* Feeds sink a library where every genre has a track, the rest spread
+     * at random. Artists and folders repeat, as they do in real libraries. */
+    static void library(int tracks, int genres, PlaylistParser.Sink sink) {
+        final Random rand = new Random(tracks * 31L + genres);
+        final int artists = Math.max(1, tracks / 12);
+        for (int t = 0; t < tracks; ++t) {
+            final int genre = t < genres ? t : rand.nextInt(genres);
+            final int artist = rand.nextInt(artists);
+            final String artistName = artist % 10 == 0 ? "" : "Artist " + artist;
+            sink.track("Song " + t, artistName, genreName(genre),
+                       "C:\\Users\\me\\Music\\iTunes\\Artist " + artist +
+                       "\\Song " + t + ".mp3");
+        }
+    }
+
+    /* Writes the library as an iTunes export: UTF-16 with a BOM, tab
+     * delimited, every column of a real export present. */
+    static void writeExport(File file, int tracks, int genres) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file),
+                                           Charset.forName("UTF-16")), 1 << 16))) {
+            final String[] header = new String[PlaylistParser.COLUMNS + 4];
+            for (int c = 0; c < header.length; ++c) {
+                header[c] = "Column " + c;
+            }
+            header[PlaylistParser.NAME] = "Name";
+            header[PlaylistParser.ARTIST] = "Artist";
+            header[PlaylistParser.GENRE] = "Genre";
+            header[PlaylistParser.LOCATION] = "Location";
+            out.print(join(header) + "\r\n");
+
+            library(tracks, genres, new PlaylistParser.Sink() {
+                final String[] row = new String[header.length];
+                int number;
+
+                public void track(String name, String artist, String genre,
+                                  String location) {
+                    Arrays.fill(row, "");
+                    row[PlaylistParser.NAME] = name;
+                    row[PlaylistParser.ARTIST] = artist;
+                    row[2] = "Composer " + (number % 97);
+                    row[3] = "Album " + (number % 1013);
+                    row[PlaylistParser.GENRE] = genre;
+                    row[7] = "MPEG audio file";
+                    row[8] = Integer.toString(3000000 + number * 7 % 9000000);
+                    row[9] = Integer.toString(120 + number % 300);
+                    row[PlaylistParser.LOCATION] = location;
+                    ++number;
+                    out.print(join(row) + "\r\n");
+                }
+            });
+        }
+    }
+
+    /* Writes a chain dense if every entry is nonzero, sparse otherwise. */
+    static void writeMarkov(File file, double[][] markov) throws IOException {
+        boolean dense = true;
+        for (final double[] row : markov) {
+            for (final double prob : row) {
+                dense &= prob != 0.0;
+            }
+        }
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), "UTF-8"), 1 << 16)) {
+            if (!dense) {
+                out.write(MarkovChain.SPARSE_HEADER + "\n");
+            }
+            for (int i = 0; i < markov.length; ++i) {
+                final StringBuilder line = new StringBuilder();
+                if (!dense) {
+                    line.append(genreName(i));
+                }
+                for (int j = 0; j < markov.length; ++j) {
+                    if (dense) {
+                        line.append(j == 0 ? "" : " ").append(markov[i][j]);
+                    } else if (markov[i][j] != 0.0) {
+                        line.append('\t').append(genreName(j))
+                            .append('\t').append(markov[i][j]);
+                    }
+                }
+                out.write(line.append('\n').toString());
+            }
+        }
+    }
+
+    private static String join(String[] fields) {
+        final StringBuilder line = new StringBuilder();
+        for (int c = 0; c < fields.length; ++c) {
+            line.append(c == 0 ? "" : "\t").append(fields[c]);
+        }
+        return line.toString();
+    }
+
+    /* The folder generated files are kept in. */
+    private static File dir() throws IOException {
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "shuffle-bench");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    private static TrackCatalog catalog(int tracks, int genres) {
+        final TrackCatalog.Builder builder = new TrackCatalog.Builder();
+        library(tracks, genres, builder);
+        return builder.build();
+    }
+
+    /* Parses the export of tracks tracks in genres genres, on one thread
+     * or several; a run returns the tracks read. */
+    public static LongSupplier parse(int tracks, int genres, final boolean parallel)
+            throws IOException {
+        final File export = new File(dir(), "export-" + tracks + "-" + genres + ".txt");
+        if (!export.isFile()) {
+            writeExport(export, tracks, genres);
+        }
+        return new LongSupplier() {
+            public long getAsLong() {
+                final TrackCatalog.Builder builder = new TrackCatalog.Builder();
+                try {
+                    if (parallel) {
+                        PlaylistLoader.loadParallel(export, builder);
+                    } else {
+                        PlaylistLoader.loadSequential(export, builder);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return builder.build().size();
+            }
+        };
+    }
+
+    /* Loads a chain file of genres genres; a run returns its rows. */
+    public static LongSupplier markov(int genres, double density) throws IOException {
+        final File markov = new File(dir(), "markov-" + genres + "-" + density + ".txt");
+        if (!markov.isFile()) {
+            writeMarkov(markov, random(genres, density, genres));
+        }
+        final TrackCatalog catalog = catalog(genres, genres);
+        return new LongSupplier() {
+            public long getAsLong() {
+                try {
+                    return MarkovChain.load(markov.getPath(), catalog).size();
+                } catch (MarkovChain.FormatException e) {
+                    throw new IllegalStateException(e);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /* Genre picks of the named sampler; a run returns picks. */
+    public static LongSupplier sample(String name, int genres, double density,
+                                      final int picks) {
+        final GenreSampler sampler = GenreSampler.create(
+                name, MarkovChain.dense(random(genres, density, genres)));
+        final Random rand = new Random(1);
+        return new LongSupplier() {
+            int row;
+
+            public long getAsLong() {
+                for (int q = 0; q < picks; ++q) {
+                    row = sampler.next(row, rand);
+                }
+                return picks;
+            }
+        };
+    }
+
+    /* Shuffles the whole library with the named sampler; a run returns
+     * the songs picked. */
+    public static LongSupplier shuffle(String name, int tracks, final int genres,
+                                       double density) {
+        final TrackCatalog catalog = catalog(tracks, genres);
+        final MarkovChain chain = MarkovChain.dense(random(genres, density, genres));
+        final String sampler = System.getProperty(GenreSampler.PROPERTY);
+        System.setProperty(GenreSampler.PROPERTY, name);
+        final ShuffleEngine engine = new ShuffleEngine(catalog, chain);
+        if (sampler == null) {
+            System.clearProperty(GenreSampler.PROPERTY);
+        } else {
+            System.setProperty(GenreSampler.PROPERTY, sampler);
+        }
+        final int[] picks = new int[catalog.size()];
+        final Random rand = new Random(1);
+        return new LongSupplier() {
+            public long getAsLong() {
+                return engine.shuffle(picks, rand.nextInt(genres), rand, null);
+            }
+        };
+    }
+
+    /* Draws every song of genres genres of 1-3 songs each with the named
+     * sampler, or rewrite; a run returns the songs picked. */
+    public static LongSupplier exhaust(final String name, final int genres) {
+        final Random sizeRand = new Random(42);
+        final int[] sizes = new int[genres];
+        for (int i = 0; i < genres; ++i) {
+            sizes[i] = 1 + sizeRand.nextInt(3);
+        }
+        final double[][] markov = uniform(genres);
+        final Random rand = new Random(1);
+        return new LongSupplier() {
+            public long getAsLong() {
+                final GenreSampler sampler = name.equals("rewrite")
+                        ? new RewriteSampler(copy(markov))
+                        : GenreSampler.create(name, MarkovChain.uniform(genres));
+                return drain(sampler, sizes, rand);
+            }
+        };
+    }
+}
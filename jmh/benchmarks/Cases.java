@@ -0,0 +1,28 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.LongSupplier;
+
+
+/**
+ * The cases of BenchmarkCases, which is in the default package and so
+ * can't be named here. Found by reflection, once per setup.
+ */
+final class Cases {
+    private Cases() {}
+
+    /* The case made by BenchmarkCases.name(args). */
+    static LongSupplier get(String name, Object... args) throws Exception {
+        for (final Method method : Class.forName("BenchmarkCases").getMethods()) {
+            if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+                try {
+                    return (LongSupplier) method.invoke(null, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        throw new NoSuchMethodException("BenchmarkCases." + name);
+    }
+}
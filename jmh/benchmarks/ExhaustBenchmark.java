@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Many tiny genres, so nearly every few picks empty a genre: the original
+ * dense in-place matrix rewrite against each GenreSampler. Genres have no
+ * more than 3 songs, so the chain is always even.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExhaustBenchmark {
+    @Param({"rewrite", "scan", "alias"})
+    public String sampler;
+
+    @Param({"16", "256", "1024"})
+    public int genres;
+
+    private LongSupplier exhaust;
+
+    @Setup
+    public void setup() throws Exception {
+        exhaust = Cases.get("exhaust", sampler, genres);
+    }
+
+    @Benchmark
+    public long exhaust() {
+        return exhaust.getAsLong();
+    }
+}
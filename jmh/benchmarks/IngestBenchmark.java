@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Parsing a synthetic iTunes export into a catalog, on one thread and in
+ * parallel, and loading a dense (density 1) or sparse Markov chain file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark {
+    @State(Scope.Benchmark)
+    public static class Export {
+        @Param({"10000", "100000"})
+        public int tracks;
+
+        @Param({"16", "256", "1024"})
+        public int genres;
+
+        @Param({"false", "true"})
+        public boolean parallel;
+
+        LongSupplier parse;
+
+        @Setup
+        public void setup() throws Exception {
+            parse = Cases.get("parse", tracks, genres, parallel);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Chain {
+        @Param({"16", "256", "1024"})
+        public int genres;
+
+        @Param({"1", "0.05"})
+        public double density;
+
+        LongSupplier load;
+
+        @Setup
+        public void setup() throws Exception {
+            load = Cases.get("markov", genres, density);
+        }
+    }
+
+    @Benchmark
+    public long parse(Export export) {
+        return export.parse.getAsLong();
+    }
+
+    @Benchmark
+    public long markov(Chain chain) {
+        return chain.load.getAsLong();
+    }
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Genre picks of each GenreSampler with no genre running out, the time
+ * being per pick.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SampleBenchmark {
+    private static final int PICKS = 1 << 16;
+
+    @Param({"scan", "alias"})
+    public String sampler;
+
+    @Param({"16", "256", "1024"})
+    public int genres;
+
+    @Param({"1", "0.05"})
+    public double density;
+
+    private LongSupplier sample;
+
+    @Setup
+    public void setup() throws Exception {
+        sample = Cases.get("sample", sampler, genres, density, PICKS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PICKS)
+    public long sample() {
+        return sample.getAsLong();
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Whole-library shuffles, so every genre runs out of songs, with each
+ * GenreSampler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShuffleBenchmark {
+    @Param({"scan", "alias"})
+    public String sampler;
+
+    @Param({"10000", "100000"})
+    public int tracks;
+
+    @Param({"16", "256", "1024"})
+    public int genres;
+
+    @Param({"1", "0.05"})
+    public double density;
+
+    private LongSupplier shuffle;
+
+    @Setup
+    public void setup() throws Exception {
+        shuffle = Cases.get("shuffle", sampler, tracks, genres, density);
+    }
+
+    @Benchmark
+    public long shuffle() {
+        return shuffle.getAsLong();
+    }
+}
@@ -0,0 +1,291 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+
+/**
+ * Mixes every playing song into one SourceDataLine. Each song writes PCM
+ * into its own Track, a single-producer single-consumer ring buffer, and
+ * one mixer thread sums CHUNK frames from every track at a time with the
+ * track's gain and writes the result to the line. Songs are converted to
+ * FORMAT as they are written, so the mixer does only adds and multiplies:
+ * its cost is the same for every track whatever the source format, and
+ * no song owns an audio device.
+ *
+ * So that full-scale songs blended together don't clip, the sum is scaled
+ * by 1/N for N tracks playing, ramped over a chunk when N changes; one
+ * song plays at its own gain.
+ */
+final class AudioMixer {
+    static final AudioFormat FORMAT = new AudioFormat(44100f, 16, 2, true, false);
+    static final int CHUNK = 1024;                  // Frames mixed at a time
+    private static final int LINE_FRAMES = 4 * CHUNK;
+    private static final int TRACK_FRAMES = 16 * CHUNK;  // About 370ms per track
+    private static final int UNITY = 1 << 12;       // Fixed point gain of 1.0
+    private static final float MAX_GAIN = 4f;
+
+    private final List<Track> tracks = new CopyOnWriteArrayList<Track>();
+    private SourceDataLine line;
+    private Thread thread;
+
+    /* New track, mixed in as soon as it is written to. Opens the line on
+     * first use. */
+    final synchronized Track open() throws LineUnavailableException {
+        if (line == null) {
+            final SourceDataLine l = AudioSystem.getSourceDataLine(FORMAT);
+            l.open(FORMAT, LINE_FRAMES * FORMAT.getFrameSize());
+            l.start();
+            line = l;
+            thread = new Thread("audio-mixer") {
+                public void run() {
+                    mix();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        final Track track = new Track();
+        tracks.add(track);
+        notifyAll();
+        return track;
+    }
+
+    /* Stops every track and releases the line. */
+    final synchronized void close() {
+        for (final Track track : tracks) {
+            track.close();
+        }
+        tracks.clear();
+        if (thread != null) {
+            thread.interrupt();
+            line.close();
+            thread = null;
+            line = null;
+        }
+    }
+
+    /* Number of tracks being mixed. */
+    final int activeTracks() {
+        return tracks.size();
+    }
+
+    private void mix() {
+        final SourceDataLine out_line = line;
+        final int[] sum = new int[CHUNK * 2];
+        final byte[] out = new byte[CHUNK * 4];
+        int headroom = UNITY;
+        while (!Thread.currentThread().isInterrupted()) {
+            synchronized (this) {
+                while (tracks.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return ;
+                    }
+                }
+            }
+
+            int frames = 0;
+            int mixing = 0;
+            for (final Track track : tracks) {
+                if (track.closed || (track.ended && track.available() == 0)) {
+                    tracks.remove(track);
+                    Metrics.underrunEnded(track.underrun, tracks.size());
+                    track.underrun = null;
+                    LockSupport.unpark(track.writer);
+                    continue;
+                }
+                final int mixed = track.mixInto(sum);
+                frames = Math.max(frames, mixed);
+                if (mixed > 0) {
+                    ++mixing;
+                }
+                // Counted once each time a playing song's decoder falls behind
+                final boolean starved = mixed < CHUNK && !track.ended && track.writePos > 0;
+                if (starved && !track.starved) {
+                    track.underrun = Metrics.underrun();
+                } else if (!starved && track.starved) {
+                    Metrics.underrunEnded(track.underrun, tracks.size());
+                    track.underrun = null;
+                }
+                track.starved = starved;
+            }
+            if (frames == 0) {
+                // Every track is behind its decoder, give them a moment
+                LockSupport.parkNanos(1000000L);
+                continue;
+            }
+
+            // 1/N headroom, ramped from the last chunk's so it doesn't click
+            final int target = UNITY / Math.max(1, mixing);
+            final int n = frames * 2;
+            for (int i = 0, j = 0; i < n; ++i) {
+                final long g = headroom + (long) (target - headroom) * i / n;
+                final long scaled = (sum[i] * g) >> 12;
+                final int s = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled));
+                sum[i] = 0;
+                out[j++] = (byte) s;
+                out[j++] = (byte) (s >> 8);
+            }
+            headroom = target;
+            out_line.write(out, 0, frames * 4);
+        }
+    }
+
+    /**
+     * One song's input to the mixer. Only one thread may write to a track
+     * at a time, though which thread that is may change, e.g. when a song
+     * hands its track to the next one.
+     */
+    static final class Track {
+        private final short[] ring = new short[TRACK_FRAMES * 2];
+        private final int mask = ring.length - 1;
+        private volatile long readPos;              // In samples, mixer only
+        private volatile long writePos;             // In samples, writer only
+        private volatile int gain = UNITY;
+        private volatile boolean closed;
+        private volatile boolean ended;
+        private volatile Thread writer;
+        private boolean starved;                    // Mixer only
+        private Object underrun;                    // Its JFR event, mixer only
+
+        // Conversion state, writer only
+        private short[] converted = new short[4608];
+        private AudioFormat from;
+        private double step;
+        private double pos;
+        private short prevL, prevR;
+
+        private Track() {
+        }
+
+        /* Sets the track's gain, clamped to [0, MAX_GAIN]; 1 by default. */
+        final void setGain(float g) {
+            gain = Math.round(Math.max(0f, Math.min(MAX_GAIN, g)) * UNITY);
+        }
+
+        final boolean isClosed() {
+            return closed;
+        }
+
+        /* Stops the track now, dropping whatever is buffered. */
+        final void close() {
+            closed = true;
+            LockSupport.unpark(writer);
+        }
+
+        /* Ends the track once what's buffered has played. */
+        final void finish() {
+            ended = true;
+        }
+
+        /* Blocks until everything written has been mixed, or the track closed. */
+        final void drain() {
+            writer = Thread.currentThread();
+            while (!closed && available() > 0) {
+                LockSupport.parkNanos(this, 10000000L);
+            }
+        }
+
+        private int available() {
+            return (int) (writePos - readPos);
+        }
+
+        /* Adds up to CHUNK buffered frames to sum, returns how many. */
+        private int mixInto(int[] sum) {
+            final long start = readPos;
+            final int n = Math.min(available(), CHUNK * 2);
+            final int g = gain;
+            for (int i = 0; i < n; ++i) {
+                sum[i] += (ring[(int) (start + i) & mask] * g) >> 12;
+            }
+            readPos = start + n;
+            LockSupport.unpark(writer);
+            return n / 2;
+        }
+
+        /* Writes 16-bit little-endian PCM in format, converted to FORMAT.
+         * Blocks while the ring is full; returns false once closed. */
+        final boolean write(byte[] pcm, int length, AudioFormat format) {
+            writer = Thread.currentThread();
+            final int n = convert(pcm, length, format);
+            for (int done = 0; done < n; ) {
+                if (closed) {
+                    return false;
+                }
+                final long w = writePos;
+                final int room = Math.min(ring.length - (int) (w - readPos), n - done);
+                if (room == 0) {
+                    LockSupport.parkNanos(this, 10000000L);
+                    continue;
+                }
+                for (int i = 0; i < room; ++i) {
+                    ring[(int) (w + i) & mask] = converted[done + i];
+                }
+                writePos = w + room;
+                done += room;
+            }
+            return !closed;
+        }
+
+        /* Converts to stereo at FORMAT's rate, linearly interpolating between
+         * frames, into converted. Returns the number of samples. */
+        private int convert(byte[] pcm, int length, AudioFormat format) {
+            if (format != from) {
+                if (from == null || !format.matches(from)) {
+                    step = format.getSampleRate() / FORMAT.getSampleRate();
+                    pos = 0.0;
+                }
+                from = format;
+            }
+            final boolean mono = format.getChannels() == 1;
+            final int frames = length / (mono ? 2 : 4);
+            final int max = (int) Math.ceil((frames + 1) / step) * 2 + 2;
+            if (converted.length < max) {
+                converted = new short[max];
+            }
+
+            int k = 0;
+            if (step == 1.0) {
+                for (int i = 0; i < frames; ++i) {
+                    converted[k++] = left(pcm, i, mono);
+                    converted[k++] = right(pcm, i, mono);
+                }
+                return k;
+            }
+
+            // Frame -1 is the last one of the previous write
+            double t = pos;
+            while (t < frames - 1) {
+                final int i = (int) Math.floor(t);
+                final double f = t - i;
+                final int l0 = i < 0 ? prevL : left(pcm, i, mono);
+                final int r0 = i < 0 ? prevR : right(pcm, i, mono);
+                converted[k++] = (short) (l0 + (left(pcm, i + 1, mono) - l0) * f);
+                converted[k++] = (short) (r0 + (right(pcm, i + 1, mono) - r0) * f);
+                t += step;
+            }
+            pos = t - frames;
+            if (frames > 0) {
+                prevL = left(pcm, frames - 1, mono);
+                prevR = right(pcm, frames - 1, mono);
+            }
+            return k;
+        }
+
+        private static short left(byte[] pcm, int frame, boolean mono) {
+            final int at = frame * (mono ? 2 : 4);
+            return (short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8));
+        }
+
+        private static short right(byte[] pcm, int frame, boolean mono) {
+            final int at = frame * (mono ? 2 : 4) + (mono ? 0 : 2);
+            return (short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8));
+        }
+    }
+}
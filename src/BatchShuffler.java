@@ -0,0 +1,361 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Makes shuffles without the GUI, e.g. on a headless server.
+ *
+ *   java BatchShuffler [options] playlist.txt
+ *
+ *   --length N        songs per shuffle
+ *   --markov FILE     Markov chain file, even chain if not given
+ *   --genre GENRE     genre to start in, random if not given
+ *   --seed S          seed, random if not given
+ *   --count K         shuffles to write (default 1)
+ *   --threads T       threads making them (default one per core)
+ *   --format m3u|tsv  output format (default m3u)
+ *   --jobs FILE       make the shuffles listed in FILE into --out DIR
+ *   --out DIR
+ *
+ * Without --jobs the shuffles are streamed to stdout, in order; a seed
+ * gives the same shuffles however many threads make them. A jobs file has
+ * a line per shuffle of tab separated fields: name, length, and optionally
+ * genre, seed and Markov file, empty fields taking the options' values.
+ * Each is written to DIR/name.m3u (or .tsv); the playlist is read once,
+ * and each Markov file once, however many shuffles use them. The jobs are
+ * made on one pool of --threads threads, and a job without a seed takes
+ * its own, drawn from the --seed in line order, so a jobs file also gives
+ * the same shuffles however many threads make them.
+ */
+final public class BatchShuffler {
+    private final String playlist;
+    private final boolean tsv;
+    private final int threads;
+    private TrackCatalog catalog;           // Read on first use
+    private final Map<String, ShuffleEngine> engines =
+            new HashMap<String, ShuffleEngine>();
+
+    private BatchShuffler(String playlist, boolean tsv, int threads) {
+        this.playlist = playlist;
+        this.tsv = tsv;
+        this.threads = threads;
+    }
+
+    /* The engine for a Markov file, loaded on first use. */
+    final private ShuffleEngine engine(String markov)
+            throws ShuffleException, IOException {
+        ShuffleEngine engine = engines.get(markov);
+        if (engine == null) {
+            if (catalog == null) {
+                catalog = ShuffleEngine.readPlaylist(playlist);
+            }
+            engine = ShuffleEngine.load(catalog, markov);
+            engines.put(markov, engine);
+        }
+        return engine;
+    }
+
+    /* Writes count shuffles, made in parallel and written in order.
+     * Runtime: O(count * (n + q) / threads). */
+    final void write(final Writer out, String markov, String genre, int length,
+                     long seed, final int count) throws ShuffleException, IOException {
+        final ShuffleEngine engine = engine(markov);
+        final TrackCatalog catalog = engine.catalog();
+        writeHeader(out, seed);
+
+        // Shuffles finished ahead of an earlier one wait here
+        final Map<Integer, String> pending = new HashMap<Integer, String>();
+        final int[] written = new int[1];
+        engine.shuffleAll(count, length, genre, seed, threads, new ShuffleEngine.Sink() {
+            public void shuffled(int k, int[] picks) throws IOException {
+                final String text = format(catalog, picks, k, count);
+                synchronized (pending) {
+                    pending.put(k, text);
+                    String next;
+                    while ((next = pending.remove(written[0])) != null) {
+                        out.write(next);
+                        ++written[0];
+                    }
+                }
+            }
+        });
+    }
+
+    /* Records the seed, the same arguments and seed give the same shuffles. */
+    final private void writeHeader(Writer out, long seed) throws IOException {
+        if (!tsv) {
+            out.write("#EXTM3U\n#SEED:" + seed + "\n");
+        } else {
+            out.write("# seed " + seed + "\n");
+            out.write("shuffle\tposition\tgenre\tartist\tname\tlocation\n");
+        }
+    }
+
+    /* Shuffle k of count, as written after the header. */
+    final private String format(TrackCatalog catalog, int[] picks, int k, int count) {
+        final StringBuilder text = new StringBuilder(picks.length * 64);
+        if (tsv) {
+            appendTsv(text, catalog, picks, k + 1);
+        } else {
+            if (count > 1) {
+                text.append("#PLAYLIST:Shuffle ").append(k + 1).append('\n');
+            }
+            appendM3u(text, catalog, picks);
+        }
+        return text.toString();
+    }
+
+    private static void appendM3u(StringBuilder out, TrackCatalog catalog, int[] picks) {
+        for (final int track : picks) {
+            final String artist = catalog.artist(track);
+            out.append("#EXTINF:-1,");
+            if (!artist.equals("")) {
+                out.append(artist).append(" - ");
+            }
+            out.append(catalog.name(track)).append('\n');
+            out.append(catalog.location(track)).append('\n');
+        }
+    }
+
+    private static void appendTsv(StringBuilder out, TrackCatalog catalog, int[] picks,
+                                  int shuffle) {
+        for (int q = 0; q < picks.length; ++q) {
+            final int track = picks[q];
+            out.append(shuffle).append('\t').append(q + 1).append('\t');
+            out.append(catalog.label(track)).append('\t');
+            out.append(catalog.artist(track)).append('\t');
+            out.append(catalog.name(track)).append('\t');
+            out.append(catalog.location(track)).append('\n');
+        }
+    }
+
+    /* Makes every shuffle in a jobs file on one pool of threads, returns
+     * how many failed. A job without a seed takes the next seed drawn, in
+     * line order, from a SplittableRandom seeded with seed, so the files
+     * are the same however many threads make them.
+     * Runtime: O(sum of (n + q) / threads) over the jobs. */
+    final int runJobs(File jobs, File dir, String markov, String genre, long seed)
+            throws IOException {
+        final SplittableRandom seeds = new SplittableRandom(seed);
+        final List<Integer> lines = new ArrayList<Integer>();
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        int failed = 0;
+        int line_number = 0;
+        final ExecutorService pool = ShuffleEngine.pool(Math.max(1, threads), "job");
+        try {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(jobs), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    ++line_number;
+                    if (line.trim().equals("") || line.startsWith("#")) {
+                        continue;
+                    }
+                    final long next_seed = seeds.nextLong();
+                    final String[] fields = line.split("\t", -1);
+                    try {
+                        if (fields.length < 2 || fields[0].trim().equals("")) {
+                            throw new ShuffleException("Bad Job", "Expected a name and " +
+                                                       "a length, tab separated.");
+                        }
+                        final String name = fields[0].trim();
+                        final int length = parseInt(fields[1].trim(), "length");
+                        final String job_genre = field(fields, 2, genre).toUpperCase();
+                        final long job_seed = fields.length > 3 && !fields[3].trim().equals("")
+                                ? parseLong(fields[3].trim(), "seed") : next_seed;
+                        final ShuffleEngine engine = engine(field(fields, 4, markov));
+                        engine.checkLength(length);
+                        if (!job_genre.equals("")) {
+                            engine.startGenre(job_genre, null);
+                        }
+
+                        final File out = new File(dir, name + (tsv ? ".tsv" : ".m3u"));
+                        lines.add(line_number);
+                        futures.add(pool.submit(new Callable<Void>() {
+                            public Void call() throws ShuffleException, IOException {
+                                final Random rand = ShuffleEngine.random(job_seed);
+                                final int[] picks = new int[length];
+                                engine.shuffle(picks, engine.startGenre(job_genre, rand),
+                                               rand, null);
+                                try (Writer w = writer(new FileOutputStream(out))) {
+                                    writeHeader(w, job_seed);
+                                    w.write(format(engine.catalog(), picks, 0, 1));
+                                }
+                                return null;
+                            }
+                        }));
+                    } catch (ShuffleException e) {
+                        System.err.println(jobs + ":" + line_number + ": " +
+                                           e.getTitle() + ": " + e.getMessage());
+                        ++failed;
+                    }
+                }
+            }
+
+            for (int j = 0; j < futures.size(); ++j) {
+                try {
+                    futures.get(j).get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    System.err.println(jobs + ":" + lines.get(j) + ": " +
+                                       (cause instanceof ShuffleException
+                                        ? ((ShuffleException) cause).getTitle() + ": " +
+                                          cause.getMessage()
+                                        : cause));
+                    ++failed;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return failed;
+    }
+
+    private static String field(String[] fields, int i, String otherwise) {
+        return fields.length > i && !fields[i].trim().equals("")
+                ? fields[i].trim() : otherwise;
+    }
+
+    private static int parseInt(String value, String what) throws ShuffleException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ShuffleException("Invalid Number", "Bad " + what + ": " + value);
+        }
+    }
+
+    private static long parseLong(String value, String what) throws ShuffleException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new ShuffleException("Invalid Number", "Bad " + what + ": " + value);
+        }
+    }
+
+    private static Writer writer(OutputStream out) {
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                                  1 << 16);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java BatchShuffler [--length N] [--markov FILE] " +
+                           "[--genre GENRE] [--seed S] [--count K] [--threads T] " +
+                           "[--format m3u|tsv] [--jobs FILE --out DIR] <playlist>");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String playlist = null;
+        String markov = "";
+        String genre = "";
+        String format = "m3u";
+        String jobs = null;
+        String dir = null;
+        String length = null;
+        int count = 1;
+        String threads = Integer.toString(Runtime.getRuntime().availableProcessors());
+        Long seed = null;
+        for (int i = 0; i < args.length; ++i) {
+            final String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (playlist != null) {
+                    usage();
+                }
+                playlist = arg;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                usage();
+            }
+            final String value = args[++i];
+            switch (arg) {
+                case "--length": length = value; break;
+                case "--markov": markov = value; break;
+                case "--genre":  genre = value; break;
+                case "--format": format = value.toLowerCase(); break;
+                case "--count":
+                    try {
+                        count = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        usage();
+                    }
+                    break;
+                case "--threads": threads = value; break;
+                case "--jobs":   jobs = value; break;
+                case "--out":    dir = value; break;
+                case "--seed":
+                    try {
+                        seed = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        usage();
+                    }
+                    break;
+                default: usage();
+            }
+        }
+        if (playlist == null || !(format.equals("m3u") || format.equals("tsv")) ||
+                count < 1 ||
+                (jobs == null ? length == null : dir == null)) {
+            usage();
+        }
+        if (seed == null) {
+            seed = new Random().nextLong();
+            System.err.println("Seed " + seed);
+        }
+
+        Metrics.startExport();
+        int status = 0;
+        try {
+            final BatchShuffler shuffler = new BatchShuffler(playlist, format.equals("tsv"),
+                                                             parseInt(threads, "threads"));
+            if (jobs != null) {
+                final File out = new File(dir);
+                if (!out.isDirectory() && !out.mkdirs()) {
+                    System.err.println("Cannot create " + out);
+                    System.exit(1);
+                }
+                if (shuffler.runJobs(new File(jobs), out, markov, genre, seed) > 0) {
+                    status = 1;
+                }
+            } else {
+                final Writer out = writer(System.out);
+                shuffler.write(out, markov, genre.toUpperCase(),
+                               parseInt(length, "length"), seed, count);
+                out.flush();
+            }
+        } catch (ShuffleException e) {
+            System.err.println(e.getTitle() + ": " + e.getMessage());
+            status = 1;
+        } finally {
+            Metrics.export();       // Final snapshot, if -Dshuffler.metrics is set
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+
+/**
+ * Binary snapshot of a parsed playlist, written next to the export as
+ * "<export>.mmscache" so later runs can skip the text parser. A snapshot
+ * is keyed on the export's size, modification time and CRC-32; it is
+ * used when size and time match, or when only the time differs but the
+ * contents hash the same. The most recently loaded catalog is also kept
+ * in memory, so repeated shuffles of an unchanged export skip the disk.
+ * When the export has changed, the previous catalog is what PlaylistDiff
+ * patches rather than parsing it all again.
+ *
+ * Disable with -Dshuffler.cache=false.
+ */
+final class CatalogCache {
+    static final String PROPERTY = "shuffler.cache";
+    static final String SUFFIX = ".mmscache";
+    private static final int MAGIC = 0x4D4D5343;    // "MMSC"
+    private static final int VERSION = 2;
+    private static final int MTIME_OFFSET = 4 + 4 + 8;
+    private static final int HEADER_BYTES = MTIME_OFFSET + 8 + 8;
+
+    private static String lastPath;
+    private static long lastSize, lastModified;
+    private static TrackCatalog lastCatalog;
+
+    private CatalogCache() {}
+
+    static boolean enabled() {
+        return !System.getProperty(PROPERTY, "true").equalsIgnoreCase("false");
+    }
+
+    static File snapshotFile(File export) {
+        return new File(export.getPath() + SUFFIX);
+    }
+
+    /* Returns the cached catalog of export, or null if there is no fresh one. */
+    static synchronized TrackCatalog load(File export) {
+        if (!enabled() || !export.isFile()) {
+            return null;
+        }
+        final long size = export.length();
+        final long modified = export.lastModified();
+        if (lastCatalog != null && export.getPath().equals(lastPath) &&
+                size == lastSize && modified == lastModified) {
+            return lastCatalog;
+        }
+
+        final File snapshot = snapshotFile(export);
+        if (!snapshot.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+             FileChannel channel = file.getChannel()) {
+            final MappedByteBuffer in =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION ||
+                    in.getLong() != size) {
+                return null;
+            }
+            final long snapModified = in.getLong();
+            final long snapHash = in.getLong();
+            if (snapModified != modified) {
+                // Touched but maybe not changed, compare contents
+                if (snapHash != hash(export)) {
+                    return null;
+                }
+                touch(snapshot, modified);
+            }
+
+            final TrackCatalog catalog = TrackCatalog.read(in);
+            remember(export, size, modified, catalog);
+            return catalog;
+        } catch (IOException | RuntimeException e) {
+            // Unreadable, truncated or corrupt: a miss, parse the export again
+            return null;
+        }
+    }
+
+    /* The catalog export was last loaded into, even if the export has
+     * changed since: the one in memory, else the snapshot's. Null if there
+     * is neither, for PlaylistDiff to patch. */
+    static synchronized TrackCatalog previous(File export) {
+        if (!enabled() || !export.isFile()) {
+            return null;
+        }
+        if (lastCatalog != null && export.getPath().equals(lastPath)) {
+            return lastCatalog;
+        }
+        final File snapshot = snapshotFile(export);
+        if (!snapshot.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+             FileChannel channel = file.getChannel()) {
+            final MappedByteBuffer in =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            in.position(HEADER_BYTES);
+            return TrackCatalog.read(in);
+        } catch (IOException | RuntimeException e) {
+            return null;    // Unreadable, truncated or corrupt
+        }
+    }
+
+    /* Writes catalog as the snapshot of export; failures are only reported. */
+    static synchronized void save(File export, TrackCatalog catalog) {
+        if (!enabled()) {
+            return ;
+        }
+        final long size = export.length();
+        final long modified = export.lastModified();
+        remember(export, size, modified, catalog);
+
+        final File snapshot = snapshotFile(export);
+        final File temp = new File(snapshot.getPath() + ".tmp");
+        try {
+            final long hash = hash(export);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                            new FileOutputStream(temp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(size);
+                out.writeLong(modified);
+                out.writeLong(hash);
+                catalog.write(out);
+            }
+            if (!temp.renameTo(snapshot)) {
+                snapshot.delete();
+                if (!temp.renameTo(snapshot)) {
+                    temp.delete();
+                }
+            }
+        } catch (IOException e) {
+            // Not being able to cache isn't fatal, e.g. a read-only folder
+            System.out.println("Could not write " + snapshot + ": " + e);
+            temp.delete();
+        }
+    }
+
+    /* CRC-32 of the whole file, read through a mapping. */
+    static long hash(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            final CRC32 crc = new CRC32();
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return crc.getValue();
+        }
+    }
+
+    /* Records the export's new modification time in the snapshot header. */
+    private static void touch(File snapshot, long modified) {
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(MTIME_OFFSET);
+            file.writeLong(modified);
+        } catch (IOException e) {
+            // Next load just hashes the export again
+        }
+    }
+
+    private static void remember(File export, long size, long modified,
+                                 TrackCatalog catalog) {
+        lastPath = export.getPath();
+        lastSize = size;
+        lastModified = modified;
+        lastCatalog = catalog;
+    }
+}
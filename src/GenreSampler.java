@@ -0,0 +1,298 @@
+import java.util.Random;
+
+
+/**
+ * Picks the genre of the next song in a shuffle from a row of the Markov
+ * chain, and adjusts the chain when a genre runs out of songs.
+ *
+ * The chain itself is never rewritten. When a genre empties, its share of
+ * each row is spread evenly over the row's remaining nonzero entries, so
+ * every such entry carries the same per-row bonus on top of its original
+ * probability. Keeping that bonus, and the live total of each row, makes
+ * removing a genre O(r), r <= G being the rows it has a nonzero entry in,
+ * instead of rewriting the whole O(G^2) matrix; the chain's column index
+ * finds those rows. d is the number of nonzero entries in a row.
+ *
+ * A sampler that has not been used can be copy()'d, which is how one
+ * engine makes many shuffles: the copy starts from the same state without
+ * reading the chain again, and shares what it can with the original.
+ *
+ * Two implementations are available so their output distributions and
+ * throughput can be compared; choose one with -Dshuffler.sampler=NAME.
+ *   scan:  walks the row's cumulative probabilities, O(d) per pick
+ *          (default).
+ *   alias: Vose alias table per row, O(1) per pick, but O(d) to rebuild
+ *          the table of every row a removed genre was in.
+ * Alias is faster only while genres keep their songs. A whole-library
+ * shuffle empties every genre, and with ~1000 genres the rebuilds cost
+ * more than the picks save: ExhaustBenchmark measures alias at about
+ * 26 ms/op against 12 ms for scan, and a 10,000 track shuffle takes
+ * two to four times as long. Hence scan is the default.
+ */
+abstract class GenreSampler {
+    static final String PROPERTY = "shuffler.sampler";
+
+    /* Returns the sampler named by the system property, scan if unset. */
+    static GenreSampler create(MarkovChain chain) {
+        return create(System.getProperty(PROPERTY, "scan"), chain);
+    }
+
+    static GenreSampler create(String name, MarkovChain chain) {
+        if (name.equalsIgnoreCase("alias")) {
+            return new AliasSampler(chain);
+        }
+        return new ScanSampler(chain);
+    }
+
+    protected final MarkovChain chain;
+    protected final boolean[] exhausted;
+    private final double[] bonus;       // Added to each live nonzero entry of a row
+    private final double[] liveProb;    // Original probability left in each row
+    private final int[] liveCols;       // Live nonzero entries in each row
+    private final int[] liveGenres;     // Genres with songs left, unordered
+    private final int[] livePos;        // Position of each genre in liveGenres
+    private int numLive;
+
+    protected GenreSampler(MarkovChain chain) {
+        final int n = chain.size();
+        this.chain = chain;
+        exhausted = new boolean[n];
+        bonus = new double[n];
+        liveProb = new double[n];
+        liveCols = new int[n];
+        liveGenres = new int[n];
+        livePos = new int[n];
+        numLive = n;
+        for (int j = 0; j < n; ++j) {
+            liveGenres[j] = j;
+            livePos[j] = j;
+            for (int e = chain.rowStart(j); e < chain.rowEnd(j); ++e) {
+                liveProb[j] += chain.prob(e);
+            }
+            liveCols[j] = chain.rowEnd(j) - chain.rowStart(j);
+        }
+    }
+
+    /* Starts from the state of an unused sampler. Runtime: O(G). */
+    protected GenreSampler(GenreSampler unused) {
+        if (unused.numLive != unused.exhausted.length) {
+            throw new IllegalStateException("Sampler already used");
+        }
+        final int n = unused.exhausted.length;
+        chain = unused.chain;
+        exhausted = new boolean[n];
+        bonus = new double[n];
+        liveProb = unused.liveProb.clone();
+        liveCols = unused.liveCols.clone();
+        liveGenres = unused.liveGenres.clone();
+        livePos = unused.livePos.clone();
+        numLive = n;
+    }
+
+    /* Returns the genre that follows genre row. */
+    abstract int next(int row, Random rand);
+
+    /* A fresh sampler for another shuffle; this one must not have been used.
+     * Safe to call from several threads at once. */
+    abstract GenreSampler copy();
+
+    /* Called when exhaust() changes a row's weights. */
+    protected void rowChanged(int row) {}
+
+    /* Current probability of a chain entry in row. Runtime: O(1). */
+    final double weight(int row, int entry) {
+        return exhausted[chain.col(entry)] ? 0.0 : chain.prob(entry) + bonus[row];
+    }
+
+    /* Number of nonzero entries of a row. Runtime: O(1). */
+    final int liveCols(int row) {
+        return liveCols[row];
+    }
+
+    /* Sum of a row's current probabilities. Runtime: O(1). */
+    final double total(int row) {
+        return liveProb[row] + liveCols[row] * bonus[row];
+    }
+
+    /* Picks uniformly among genres that still have songs. Runtime: O(1). */
+    final int anyLive(Random rand) {
+        return liveGenres[rand.nextInt(numLive)];
+    }
+
+    /* Distributes the probability of a genre with no songs left.
+     * Runtime: O(r), r <= G being the rows that hold the genre. */
+    void exhaust(int genre) {
+        exhausted[genre] = true;
+        final int last = liveGenres[--numLive];
+        liveGenres[livePos[genre]] = last;
+        livePos[last] = livePos[genre];
+        if (numLive == 0) {
+            return ;
+        }
+
+        for (int k = chain.columnStart(genre); k < chain.columnEnd(genre); ++k) {
+            final double prob = chain.prob(chain.columnEntry(k));
+            for (int i = chain.sharedStart(k); i < chain.sharedEnd(k); ++i) {
+                final int j = chain.sharedRow(i);
+                final double mass = prob + bonus[j];
+                liveProb[j] -= prob;
+                --liveCols[j];
+                bonus[j] += mass / numLive;
+                rowChanged(j);
+            }
+        }
+    }
+}
+
+
+/* Linear walk over the cumulative probabilities of a row. */
+final class ScanSampler extends GenreSampler {
+    ScanSampler(MarkovChain chain) {
+        super(chain);
+    }
+
+    private ScanSampler(ScanSampler unused) {
+        super(unused);
+    }
+
+    GenreSampler copy() {
+        return new ScanSampler(this);
+    }
+
+    int next(int row, Random rand) {
+        final double total = total(row);
+        // Rounding can leave a little of liveProb after the last entry goes
+        if (liveCols(row) == 0 || total <= 0.0) {
+            return anyLive(rand);
+        }
+
+        final double target = rand.nextDouble() * total;
+        int picked = -1;
+        double acc = 0.0;
+        for (int e = chain.rowStart(row); e < chain.rowEnd(row); ++e) {
+            final double prob = weight(row, e);
+            if (prob > 0.0) {
+                picked = chain.col(e);
+                if ((acc += prob) > target) {
+                    break;
+                }
+            }
+        }
+        return picked;
+    }
+}
+
+
+/**
+ * Vose alias tables, built the first time a row is visited and rebuilt
+ * lazily for rows that exhaust() touched. Each table covers just the row's
+ * nonzero columns, so zero-probability genres can never be drawn. Copies
+ * share the tables of rows they haven't changed, so a table built by one
+ * shuffle is reused by every later one.
+ */
+final class AliasSampler extends GenreSampler {
+    /* One row's table; immutable, so safe to share between threads. */
+    private static final class Table {
+        final int[] cols;
+        final double[] prob;
+        final int[] alias;
+
+        Table(int[] cols, double[] prob, int[] alias) {
+            this.cols = cols;
+            this.prob = prob;
+            this.alias = alias;
+        }
+    }
+
+    private final Table[] shared;       // Tables of the unchanged chain
+    private final Table[] tables;       // This sampler's, null until visited
+    private final boolean[] changed;
+
+    AliasSampler(MarkovChain chain) {
+        super(chain);
+        shared = new Table[chain.size()];
+        tables = new Table[chain.size()];
+        changed = new boolean[chain.size()];
+    }
+
+    private AliasSampler(AliasSampler unused) {
+        super(unused);
+        shared = unused.shared;
+        tables = new Table[shared.length];
+        changed = new boolean[shared.length];
+    }
+
+    GenreSampler copy() {
+        return new AliasSampler(this);
+    }
+
+    /* Runtime: O(1), plus O(d) the first time a (changed) row is visited. */
+    int next(int row, Random rand) {
+        Table t = tables[row];
+        if (t == null) {
+            if (changed[row]) {
+                t = build(row);
+            } else if ((t = shared[row]) == null) {
+                // Racing copies may both build it, either result will do
+                t = build(row);
+                shared[row] = t;
+            }
+            tables[row] = t;
+        }
+        final int[] cols = t.cols;
+        if (cols.length == 0) {
+            return anyLive(rand);
+        }
+        final double u = rand.nextDouble() * cols.length;
+        final int slot = (int) u;
+        return cols[(u - slot) < t.prob[slot] ? slot : t.alias[slot]];
+    }
+
+    protected void rowChanged(int row) {
+        tables[row] = null;
+        changed[row] = true;
+    }
+
+    private Table build(int row) {
+        final int d = liveCols(row);
+        final double total = total(row);
+        final int[] c = new int[d];
+        final double[] p = new double[d];
+        for (int e = chain.rowStart(row), j = 0; j < d; ++e) {
+            final double w = weight(row, e);
+            if (w > 0.0) {
+                c[j] = chain.col(e);
+                p[j++] = w * d / total;
+            }
+        }
+
+        // Vose's method, with plain int arrays as the two worklists
+        final int[] a = new int[d];
+        final int[] small = new int[d];
+        final int[] large = new int[d];
+        int ns = 0, nl = 0;
+        for (int j = 0; j < d; ++j) {
+            if (p[j] < 1.0) {
+                small[ns++] = j;
+            } else {
+                large[nl++] = j;
+            }
+        }
+        while (ns > 0 && nl > 0) {
+            final int s = small[--ns];
+            final int l = large[--nl];
+            a[s] = l;
+            p[l] = (p[l] + p[s]) - 1.0;
+            if (p[l] < 1.0) {
+                small[ns++] = l;
+            } else {
+                large[nl++] = l;
+            }
+        }
+        // Leftovers are only off by rounding error
+        while (nl > 0) p[large[--nl]] = 1.0;
+        while (ns > 0) p[small[--ns]] = 1.0;
+
+        return new Table(c, p, a);
+    }
+}
@@ -3,7 +3,7 @@
  *                javac -classpath .;jl1.0.jar MP3.java         (Windows)
  *  Execution:    java -classpath .:jl1.0.jar MP3 filename.mp3  (OS X / Linux)
  *                java -classpath .;jl1.0.jar MP3 filename.mp3  (Windows)
- *  
+ *
  *  Plays an MP3 file using the JLayer MP3 library.
  *
  *  Reference:  http://www.javazoom.net/javalayer/sources.html
@@ -15,67 +15,271 @@
  *
  *  and put it in your working directory with this file MP3.java.
  *
+ *  Frames are decoded with TrackDecoder and written to a track of the
+ *  GUI's AudioMixer, which plays every song through one output line.
+ *  With Continuous Play on, the next song is opened and its first frames
+ *  decoded while this one plays, and when this one ends its track is
+ *  handed over still playing, so there is no gap between songs.
+ *
+ *  Files are memory-mapped and indexed by frame (see MappedTrack), so a
+ *  song can start at any frame and seek while it plays.
+ *
  *************************************************************************/
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import javazoom.jl.player.Player;
+import javax.sound.sampled.LineUnavailableException;
 
 
 public class MP3 {
+    private static final int PREPARE_AFTER = 40;    // Frames, about a second in
+    private static final int PREFETCH_FRAMES = 8;
+
     private String filename;
-    private Player player;
+    private volatile boolean closed;
+    private volatile AudioMixer.Track track;
+    private TrackDecoder decoder;                   // Opened early by prepare()
+    private volatile MappedTrack source;
+    private volatile int position;                  // Frames decoded so far
+    private volatile int seekTo = -1;               // Frame to go to, -1 if none
+    private final List<byte[]> prefetched = new ArrayList<byte[]>();
+    private MP3 successor;          // Next song, only touched by the playing thread
     int shuffle_index;
+    int generation;                 // Set by PlaybackRegistry
+    String genre;                   // For the play history, null if unknown
+    int startFrame;                 // Where to start, set before play()
+    private long requested;         // System.nanoTime() of Play, 0 once started
+    private Object startEvent;      // Its JFR event, see Metrics.begin()
 
     public MP3(String filename, int shuffle_index) {
         this.filename = filename;
         this.shuffle_index = shuffle_index;
     }
 
-    public void close() { if (player != null) player.close(); }
+    public void close() {
+        closed = true;
+        final AudioMixer.Track t = track;
+        if (t != null) {
+            t.close();
+        }
+    }
 
-    // play the MP3 file to the sound card
-    public void play(final PlaylistGUI gui) {
+    final String getFilename() {
+        return filename;
+    }
+
+    /* Frames decoded so far, the position in the song. */
+    final int position() {
+        return position;
+    }
+
+    /* Frames in the song, or -1 until it is playing and indexed. */
+    final int frames() {
+        final MappedTrack s = source;
+        return s != null && s.indexed() ? s.frames() : -1;
+    }
+
+    final double seconds(int frame) {
+        final MappedTrack s = source;
+        return s != null && s.indexed() ? s.seconds(frame) : 0.0;
+    }
+
+    /* Moves playback to a frame, from any thread. Runtime: O(1). */
+    final void seek(int frame) {
+        seekTo = Math.max(0, frame);
+    }
+
+    /* Opens the file and decodes its first frames ahead of playing it. */
+    final boolean prepare() {
         try {
-            FileInputStream fis     = new FileInputStream(filename);
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            player = new Player(bis);
-        } catch (Exception e) {
-            System.out.println("Problem playing file " + filename);
+            decoder = TrackDecoder.open(filename, startFrame);
+            source = decoder.source();
+            position = decoder.frame();
+            for (int i = 0; i < PREFETCH_FRAMES && decoder.nextFrame(); ++i) {
+                prefetched.add(Arrays.copyOf(decoder.pcm(), decoder.pcmLength()));
+            }
+            if (decoder.format() != null) {
+                return true;
+            }
+        } catch (IOException e) {
+            System.out.println("Problem preparing file " + filename);
             System.out.println(e);
         }
+        release();
+        return false;
+    }
+
+    /* Drops a prepared decoder that will not be played. */
+    private void release() {
+        if (decoder != null) {
+            decoder.close();
+            decoder = null;
+        }
+        prefetched.clear();
+    }
+
+    // play the MP3 file to the sound card
+    public void play(final PlaylistGUI gui) {
+        play(gui, null);
+    }
+
+    /* Plays to the sound card, carrying on with handoff if it's still open. */
+    public void play(final PlaylistGUI gui, final AudioMixer.Track handoff) {
+        track = handoff;
+        if (handoff == null) {
+            requested = System.nanoTime();  // Handed over songs have no wait
+            startEvent = Metrics.begin(Metrics.PLAYBACK_START);
+        }
 
-        // run in new thread to play in background
-        new Thread() {
+        // run on a playback thread to play in background
+        gui.getPlayback().execute(new Runnable() {
             public void run() {
+                boolean complete = false;
                 try {
-                    player.play();
-                } catch (Exception e) {
+                    do {
+                        if (genre != null && gui.getHistory() != null) {
+                            gui.getHistory().played(genre, filename);
+                        }
+                        complete = playOnce(gui);
+                    } while (complete && gui.isRepeatSelected());
+                } catch (IOException | LineUnavailableException e) {
+                    Metrics.PLAYBACK_ERRORS.incrementAndGet();
+                    System.out.println("Problem playing file " + filename);
                     System.out.println(e);
+                    complete = !closed;     // Move on as if it had finished
                 } finally {
                     // If song wasn't closed before finishing
-                    if (player.isComplete()) {
-                        if (gui.isRepeatSelected()) {
-                            play(gui);
-                        } else {
-                            synchronized (gui) {
-                                if (!gui.closeSong(filename)) {
-                                    return ;
-                                }
-
-                                // If cont_play is checked, play and highlight next song
-                                final int num_shuffle_songs = gui.numShuffleSongs() - 1;
-                                if ((shuffle_index++ < num_shuffle_songs) &&
-                                        gui.isContPlaySelected()) {
-                                    gui.playSong(gui.getSongPath(shuffle_index), shuffle_index);
-                                    gui.setShuffleSelect(shuffle_index);
-                                }
-                            }
+                    if (complete) {
+                        finish(gui);
+                    } else {
+                        final AudioMixer.Track t = track;
+                        if (t != null) {
+                            t.close();      // Stopped before it could start
+                        }
+                        if (successor != null) {
+                            successor.release();
                         }
                     }
                 }
             }
-        }.start();
+        });
+    }
+
+    /* Writes every frame to the track, true if the song played to its end. */
+    private boolean playOnce(PlaylistGUI gui)
+            throws IOException, LineUnavailableException {
+        if (decoder == null && !prepare()) {
+            throw new IOException("No MP3 frames in " + filename);
+        }
+        try {
+            openTrack(gui);
+            for (final byte[] frame : prefetched) {
+                if (closed || !track.write(frame, frame.length, decoder.format())) {
+                    return false;
+                }
+                if (requested != 0) {
+                    Metrics.playbackStarted(requested, startEvent, filename);
+                    startEvent = null;
+                    requested = 0;
+                }
+            }
+            int frames = prefetched.size();
+            prefetched.clear();
+            decoder.source().frames();      // Index here, not on the EDT, for seeking
+
+            while (!closed && decoder.nextFrame()) {
+                track.write(decoder.pcm(), decoder.pcmLength(), decoder.format());
+                position = decoder.frame();
+                final int seek = seekTo;
+                if (seek != -1) {
+                    seekTo = -1;
+                    decoder.seek(seek);
+                    position = decoder.frame();
+                }
+                if (++frames == PREPARE_AFTER) {
+                    prepareSuccessor(gui);
+                }
+            }
+            startFrame = 0;                 // Repeat plays from the start
+            return !closed;
+        } finally {
+            release();
+        }
+    }
+
+    /* Keeps a handed over track unless it was closed, else opens one. */
+    private void openTrack(PlaylistGUI gui) throws LineUnavailableException {
+        final AudioMixer.Track current = track;
+        if (current != null && !current.isClosed()) {
+            return ;
+        }
+        final AudioMixer.Track opened = gui.getMixer().open();
+        track = opened;
+        if (closed) {               // Stopped while the track was being opened
+            opened.close();
+        }
+    }
+
+    /* With Continuous Play on, gets the next song ready to take over. */
+    private void prepareSuccessor(PlaylistGUI gui) {
+        final int next = shuffle_index + 1;
+        if (!gui.isContPlaySelected() || next >= gui.numShuffleSongs()) {
+            return ;
+        }
+        final String path = gui.getSongPath(next);
+        if (successor != null && successor.shuffle_index == next &&
+                successor.filename.equals(path)) {
+            return ;
+        }
+        if (successor != null) {
+            successor.release();
+        }
+        successor = gui.newSong(path, next);
+        if (!successor.prepare()) {
+            successor = null;
+        }
+    }
+
+    /* Song played to its end: hand the track to the next song, or end it. */
+    private void finish(PlaylistGUI gui) {
+        final AudioMixer.Track handoff = track;
+        if (successor == null && handoff != null) {
+            handoff.drain();        // So the GUI follows what is heard
+        }
+        track = null;               // So a late close() leaves it playing
+        MP3 next = null;
+        boolean stopped = false;
+        // If cont_play is checked, play and highlight next song
+        if (gui.isContPlaySelected()) {
+            prepareSuccessor(gui);
+        }
+        if (gui.isContPlaySelected() && successor != null) {
+            if (gui.getPlaying().follow(this, successor)) {
+                next = successor;
+                next.play(gui, handoff);
+                gui.setShuffleSelect(next.shuffle_index);
+            } else {
+                stopped = true;
+            }
+        } else {
+            stopped = !gui.getPlaying().remove(this);
+        }
+
+        if (next == null) {
+            if (successor != null) {
+                successor.release();
+            }
+            if (handoff != null) {
+                if (stopped) {
+                    handoff.close();
+                } else {
+                    handoff.finish();
+                }
+            }
+        }
+        successor = null;
     }
-}
\ No newline at end of file
+}
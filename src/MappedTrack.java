@@ -0,0 +1,233 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * An MP3 file mapped read-only into memory, or copied onto the heap by
+ * copy() for TrackCache, with the offset of each of its audio frames. Mapping is O(1) and pages are read by the OS as they
+ * are played, so a song starts without waiting for the disk, and any
+ * frame can be streamed from in O(1) once the index is built. The index
+ * takes one pass over the frame headers, jumping frame to frame, and is
+ * built on first use and kept with the mapping; ID3v2 tags, junk between
+ * frames and a trailing ID3v1 tag are skipped.
+ *
+ * Every frame of a file holds the same number of samples at the same
+ * rate, which is what lets a frame number stand for a time.
+ */
+final class MappedTrack {
+    /* Bitrates in kbit/s by [MPEG-1 ? 0 : 1][layer - 1][index]. */
+    private static final int[][][] BITRATES = {
+        { { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+          { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+          { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 } },
+        { { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+          { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+          { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 } }
+    };
+    private static final int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    private final ByteBuffer bytes;     // Whole file; duplicated for each reader
+    final long modified;
+    private int[] offsets;              // Start of each frame, null until indexed
+    private int frames;
+    private int samplesPerFrame;
+    private int sampleRate;
+
+    private MappedTrack(ByteBuffer bytes, long modified) {
+        this.bytes = bytes;
+        this.modified = modified;
+    }
+
+    /* Maps a file of at most 2GB. Runtime: O(1). */
+    static MappedTrack map(File file) throws IOException {
+        final long modified = file.lastModified();
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileChannel channel = in.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return new MappedTrack(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                               channel.size()), modified);
+        }
+    }
+
+    /* The file copied onto the heap, with its index if built, so reading
+     * the copy never touches the disk. Runtime: O(size). */
+    final MappedTrack copy() {
+        final ByteBuffer heap = ByteBuffer.allocate(bytes.capacity());
+        heap.put(bytes.duplicate());
+        heap.clear();
+        final MappedTrack copy = new MappedTrack(heap, modified);
+        synchronized (this) {
+            copy.offsets = offsets;         // Never changed once built
+            copy.frames = frames;
+            copy.samplesPerFrame = samplesPerFrame;
+            copy.sampleRate = sampleRate;
+        }
+        return copy;
+    }
+
+    final int size() {
+        return bytes.capacity();
+    }
+
+    final synchronized boolean indexed() {
+        return offsets != null;
+    }
+
+    /* Number of frames, indexing the file on first use. Runtime: O(f) the
+     * first time, f being the number of frames, then O(1). */
+    final synchronized int frames() {
+        if (offsets == null) {
+            index();
+        }
+        return frames;
+    }
+
+    /* Start time of a frame in seconds, 0 if the file has no frames. */
+    final double seconds(int frame) {
+        frames();
+        return sampleRate == 0 ? 0.0 : (double) frame * samplesPerFrame / sampleRate;
+    }
+
+    /* The audio from frame on, or from the start for frame 0. Runtime: O(1)
+     * once indexed. */
+    final InputStream stream(int frame) {
+        final ByteBuffer from = bytes.duplicate();
+        if (frame > 0) {
+            synchronized (this) {
+                frames();
+                from.position(frame < frames ? offsets[frame] : from.limit());
+            }
+        }
+        return new BufferInputStream(from);
+    }
+
+    /* Records where each frame starts. Runtime: O(f) header reads. */
+    private void index() {
+        final ByteBuffer in = bytes.duplicate();
+        final int limit = in.limit();
+        int[] found = new int[Math.max(16, limit / 400)];     // ~400 bytes a frame
+        int count = 0;
+        int pos = skipId3v2(in, 0);
+        int first = 0;                  // Header of the first frame, 0 until found
+        while (pos + 4 <= limit) {
+            final int header = in.getInt(pos);
+            final int length = frameLength(header);
+            if (length <= 0 || (first != 0 && !sameStream(first, header)) ||
+                    pos + length > limit) {
+                if (in.get(pos) == 'T' && in.get(pos + 1) == 'A' &&
+                        in.get(pos + 2) == 'G' && first != 0) {
+                    break;              // ID3v1 tag at the end
+                }
+                ++pos;                  // Not a frame, look for the next sync
+                continue;
+            }
+            if (first == 0) {
+                first = header;
+                sampleRate = sampleRate(header);
+                samplesPerFrame = samplesPerFrame(header);
+            }
+            if (count == found.length) {
+                found = Arrays.copyOf(found, count * 2);
+            }
+            found[count++] = pos;
+            pos += length;
+        }
+        offsets = Arrays.copyOf(found, count);
+        frames = count;
+    }
+
+    /* Offset just past an ID3v2 tag at pos, or pos if there is none. */
+    private static int skipId3v2(ByteBuffer in, int pos) {
+        if (in.limit() - pos < 10 || in.get(pos) != 'I' || in.get(pos + 1) != 'D' ||
+                in.get(pos + 2) != '3') {
+            return pos;
+        }
+        // Size is "syncsafe": four 7-bit bytes, excluding the 10 byte header
+        int size = 0;
+        for (int i = 6; i < 10; ++i) {
+            size = (size << 7) | (in.get(pos + i) & 0x7F);
+        }
+        final boolean footer = (in.get(pos + 5) & 0x10) != 0;
+        return Math.min(in.limit(), pos + 10 + size + (footer ? 10 : 0));
+    }
+
+    /* Bytes in the frame with this header, -1 if it isn't a frame header. */
+    static int frameLength(int header) {
+        if ((header >>> 21) != 0x7FF) {
+            return -1;
+        }
+        final int version = (header >>> 19) & 3;        // 0: 2.5, 1: reserved, 2: 2, 3: 1
+        final int layer = 4 - ((header >>> 17) & 3);    // 4 is reserved
+        final int bitrateIndex = (header >>> 12) & 15;
+        final int rateIndex = (header >>> 10) & 3;
+        if (version == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15 ||
+                rateIndex == 3) {
+            return -1;              // Reserved, or free format which can't be indexed
+        }
+        final int bitrate = BITRATES[version == 3 ? 0 : 1][layer - 1][bitrateIndex] * 1000;
+        final int rate = sampleRate(header);
+        final int padding = (header >>> 9) & 1;
+        if (layer == 1) {
+            return (12 * bitrate / rate + padding) * 4;
+        }
+        return samplesPerFrame(header) / 8 * bitrate / rate + padding;
+    }
+
+    static int sampleRate(int header) {
+        final int version = (header >>> 19) & 3;
+        return SAMPLE_RATES[(header >>> 10) & 3] >> (version == 3 ? 0 : version == 2 ? 1 : 2);
+    }
+
+    static int samplesPerFrame(int header) {
+        final int layer = 4 - ((header >>> 17) & 3);
+        final boolean mpeg1 = ((header >>> 19) & 3) == 3;
+        return layer == 1 ? 384 : layer == 2 || mpeg1 ? 1152 : 576;
+    }
+
+    /* Version, layer and sample rate match, so a sync in the audio data
+     * isn't taken for a frame. */
+    private static boolean sameStream(int first, int header) {
+        final int mask = 0xFFFE0C00;
+        return (first & mask) == (header & mask);
+    }
+
+    /* Reads a buffer from its position to its limit. */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer in;
+
+        BufferInputStream(ByteBuffer in) {
+            this.in = in;
+        }
+
+        public int read() {
+            return in.hasRemaining() ? in.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!in.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, in.remaining());
+            in.get(b, off, n);
+            return n;
+        }
+
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, in.remaining()));
+            in.position(in.position() + skipped);
+            return skipped;
+        }
+
+        public int available() {
+            return in.remaining();
+        }
+    }
+}
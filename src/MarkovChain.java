@@ -0,0 +1,627 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/**
+ * Genre transition probabilities, stored as compressed sparse rows: the
+ * nonzero entries of row r are cols/probs[rowStart(r), rowEnd(r)), with
+ * columns in ascending order. Rows may share storage, which keeps the
+ * default uniform chain at O(G) memory.
+ *
+ * A column index, the transpose, is built with the chain so the rows that
+ * hold a genre can be found without searching every row. It lists each
+ * stored entry once, under its column, with the run of rows that share
+ * the storage it is in, so it too is O(G) for the uniform chain.
+ *
+ * Two text formats are read. Dense, the original: one line per genre in
+ * alphabetical order, each holding that many whitespace-separated
+ * probabilities. Sparse: a first line of "#sparse", then one line per
+ * genre that has transitions, tab-delimited as
+ *   FROM GENRE <tab> TO GENRE <tab> PROB [<tab> TO GENRE <tab> PROB ...]
+ * A target of "*" gives its PROB to each genre the file names that isn't
+ * listed on the line, so smoothed rows need not list every genre.
+ * Genres are matched case-insensitively, genres not in the playlist are
+ * ignored, and blank lines or lines starting with '#' are skipped.
+ *
+ * A binary format is also read, memory-mapped, for large chains (see
+ * MarkovConverter to create one): big-endian int magic "MMKV", version
+ * and genre count G, then G genre names as an int byte length and UTF-8
+ * bytes, zero padding to a multiple of 8, and the G x G probabilities as
+ * doubles, row by row. Genres are matched by name as in the sparse format.
+ * Rows sum to 1, except that a row of zeros stands for a genre with no
+ * line in the sparse file it was converted from. No format may hold a
+ * negative probability.
+ */
+final class MarkovChain {
+    static final String SPARSE_HEADER = "#sparse";
+    static final String OTHER_GENRES = "*";
+    static final int BINARY_MAGIC = 0x4D4D4B56;     // "MMKV"
+    static final int BINARY_VERSION = 1;
+
+    /* A Markov chain file that can't be used; the message is user facing. */
+    @SuppressWarnings("serial")
+    static final class FormatException extends Exception {
+        FormatException(String message) {
+            super(message);
+        }
+    }
+
+    private final int[] rowStart;
+    private final int[] rowEnd;
+    private final int[] cols;
+    private final double[] probs;
+
+    // Column index: rows with entries, those sharing storage adjacent and
+    // grouped by groupStart; the entries of column c are columnEntry[k],
+    // in group columnGroup[k], for k in [columnStart[c], columnStart[c + 1])
+    private final int[] sharedRows;
+    private final int[] groupStart;
+    private final int[] columnStart;
+    private final int[] columnEntry;
+    private final int[] columnGroup;
+
+    /* Runtime: O(G + nnz), nnz being the stored entries. */
+    private MarkovChain(int[] rowStart, int[] rowEnd, int[] cols, double[] probs) {
+        this.rowStart = rowStart;
+        this.rowEnd = rowEnd;
+        this.cols = cols;
+        this.probs = probs;
+
+        // A run of rows with the same storage is one group
+        final int n = rowStart.length;
+        sharedRows = new int[n];
+        final int[] groups = new int[n + 1];
+        int numRows = 0, numGroups = 0;
+        for (int row = 0; row < n; ++row) {
+            if (rowStart[row] == rowEnd[row]) {
+                continue;
+            }
+            if (numRows == 0 || rowStart[row] != rowStart[sharedRows[numRows - 1]] ||
+                    rowEnd[row] != rowEnd[sharedRows[numRows - 1]]) {
+                groups[numGroups++] = numRows;
+            }
+            sharedRows[numRows++] = row;
+        }
+        groups[numGroups] = numRows;
+        groupStart = Arrays.copyOf(groups, numGroups + 1);
+
+        // Counting sort of each group's entries by column
+        columnStart = new int[n + 1];
+        int entries = 0;
+        for (int g = 0; g < numGroups; ++g) {
+            final int row = sharedRows[groupStart[g]];
+            for (int e = rowStart[row]; e < rowEnd[row]; ++e) {
+                ++columnStart[cols[e] + 1];
+                ++entries;
+            }
+        }
+        for (int c = 0; c < n; ++c) {
+            columnStart[c + 1] += columnStart[c];
+        }
+        columnEntry = new int[entries];
+        columnGroup = new int[entries];
+        final int[] at = Arrays.copyOf(columnStart, n);
+        for (int g = 0; g < numGroups; ++g) {
+            final int row = sharedRows[groupStart[g]];
+            for (int e = rowStart[row]; e < rowEnd[row]; ++e) {
+                final int k = at[cols[e]]++;
+                columnEntry[k] = e;
+                columnGroup[k] = g;
+            }
+        }
+    }
+
+    /* Number of genres, i.e. rows and columns. */
+    final int size() {
+        return rowStart.length;
+    }
+
+    final int rowStart(int row) {
+        return rowStart[row];
+    }
+
+    final int rowEnd(int row) {
+        return rowEnd[row];
+    }
+
+    final int col(int entry) {
+        return cols[entry];
+    }
+
+    final double prob(int entry) {
+        return probs[entry];
+    }
+
+    /* The k in [columnStart(col), columnEnd(col)) index the entries of a
+     * column: each is columnEntry(k) of the rows sharedRow(i), for i in
+     * [sharedStart(k), sharedEnd(k)). */
+    final int columnStart(int col) {
+        return columnStart[col];
+    }
+
+    final int columnEnd(int col) {
+        return columnStart[col + 1];
+    }
+
+    final int columnEntry(int k) {
+        return columnEntry[k];
+    }
+
+    final int sharedStart(int k) {
+        return groupStart[columnGroup[k]];
+    }
+
+    final int sharedEnd(int k) {
+        return groupStart[columnGroup[k] + 1];
+    }
+
+    final int sharedRow(int i) {
+        return sharedRows[i];
+    }
+
+    /* Every genre equally likely to follow every other; rows share one segment. */
+    static MarkovChain uniform(int genres) {
+        final int[] cols = new int[genres];
+        final double[] probs = new double[genres];
+        for (int k = 0; k < genres; ++k) {
+            cols[k] = k;
+        }
+        Arrays.fill(probs, 1.0 / genres);
+        final int[] start = new int[genres];
+        final int[] end = new int[genres];
+        Arrays.fill(end, genres);
+        return new MarkovChain(start, end, cols, probs);
+    }
+
+    /* Builds a chain from a dense matrix, dropping zero entries. */
+    static MarkovChain dense(double[][] markov) {
+        final Rows rows = new Rows(markov.length);
+        for (int i = 0; i < markov.length; ++i) {
+            for (int j = 0; j < markov.length; ++j) {
+                rows.add(i, j, markov[i][j]);
+            }
+        }
+        return rows.build();
+    }
+
+    /* Reads a dense, sparse or binary Markov chain file over the catalog's genres. */
+    static MarkovChain load(String path, TrackCatalog catalog)
+            throws IOException, FormatException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            if (file.length() >= 4 && file.readInt() == BINARY_MAGIC) {
+                return readBinary(file.getChannel(), catalog);
+            }
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            final String first = br.readLine();
+            if (first != null && first.trim().equalsIgnoreCase(SPARSE_HEADER)) {
+                return readSparse(br, genreIndices(catalog), sparseGenres(path));
+            }
+            return readDense(first, br, catalog.numGenres());
+        }
+    }
+
+    /* Reads the dense format, line being its already read first row. */
+    private static MarkovChain readDense(String line, BufferedReader br, int genres)
+            throws IOException, FormatException {
+        final Rows rows = new Rows(genres);
+        try {
+            for (int i = 0; i < genres; ++i, line = br.readLine()) {
+                final String[] chainProbs = line.split("\\s");
+                for (int j = 0, k = 0; j < genres; ++k) {
+                    if (!chainProbs[k].equals("")) {
+                        rows.add(i, j++, checkProb(Double.parseDouble(chainProbs[k])));
+                    }
+                }
+                rows.checkSum(i);
+            }
+        } catch (NumberFormatException e) {
+            throw new FormatException("Markov chain file must be " +
+                                      "expressed in double.");
+        } catch (NullPointerException | ArrayIndexOutOfBoundsException e) {
+            throw new FormatException("Not enough rows/columns in your Markov " +
+                                      "chain (should be equal).");
+        }
+        return rows.build();
+    }
+
+    /* Reads a sparse file over every genre it names, rows and targets, in
+     * alphabetical order, which are added to genres. Nothing is dropped, so
+     * MarkovConverter can write it whole and loading the binary file keeps
+     * the same entries as loading the text. Null if the file isn't sparse. */
+    static MarkovChain loadSparse(String path, List<String> genres)
+            throws IOException, FormatException {
+        final Set<String> names = sparseGenres(path);
+        if (names == null) {
+            return null;
+        }
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        for (final String name : names) {
+            index.put(name, index.size());
+            genres.add(name);
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            br.readLine();
+            return readSparse(br, index, names);
+        }
+    }
+
+    /* Every genre a sparse file names, upper-case and in alphabetical
+     * order, or null if it isn't a sparse file. */
+    private static Set<String> sparseGenres(String path) throws IOException {
+        final Set<String> names = new TreeSet<String>();
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            final String first = br.readLine();
+            if (first == null || !first.trim().equalsIgnoreCase(SPARSE_HEADER)) {
+                return null;
+            }
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t");
+                names.add(fields[0].trim().toUpperCase());
+                for (int f = 1; f < fields.length; f += 2) {
+                    if (!fields[f].trim().equals(OTHER_GENRES)) {
+                        names.add(fields[f].trim().toUpperCase());
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    /* Markov row of each upper-case genre of the catalog. */
+    private static Map<String, Integer> genreIndices(TrackCatalog catalog) {
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        for (int g = 0; g < catalog.numGenres(); ++g) {
+            index.put(catalog.genreKey(g), g);
+        }
+        return index;
+    }
+
+    /* Reads the sparse format over the genres of index, ignoring others;
+     * names are all the genres the file names, which "*" is spread over. */
+    private static MarkovChain readSparse(BufferedReader br, Map<String, Integer> index,
+                                          Set<String> names)
+            throws IOException, FormatException {
+        final Rows rows = new Rows(index.size());
+        final boolean[] seen = new boolean[index.size()];
+        // Genres a "*" can go to: those of index the file names
+        final List<Integer> others = new ArrayList<Integer>();
+        for (final String name : names) {
+            final Integer genre = index.get(name);
+            if (genre != null) {
+                others.add(genre);
+            }
+        }
+        final boolean[] listed = new boolean[index.size()];
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("\t");
+            if (fields.length % 2 == 0) {
+                throw new FormatException("Each sparse Markov chain line must " +
+                                          "be a genre followed by genre and " +
+                                          "probability pairs.");
+            }
+
+            final int row = genreIndex(index, fields[0]);
+            double total_prob = 0.0;
+            double other_prob = 0.0;
+            int numListed = 0;
+            for (int f = 1; f < fields.length; f += 2) {
+                final double prob;
+                try {
+                    prob = checkProb(Double.parseDouble(fields[f + 1].trim()));
+                } catch (NumberFormatException e) {
+                    throw new FormatException("Markov chain file must be " +
+                                              "expressed in double.");
+                }
+                if (fields[f].trim().equals(OTHER_GENRES)) {
+                    other_prob = prob;
+                    continue;
+                }
+                total_prob += prob;
+                ++numListed;
+                final int col = genreIndex(index, fields[f]);
+                if (row != -1 && col != -1) {
+                    rows.add(row, col, prob);
+                    listed[col] = true;
+                }
+            }
+            if (row != -1 && other_prob != 0.0) {
+                for (final int col : others) {
+                    if (!listed[col]) {
+                        rows.add(row, col, other_prob);
+                    }
+                }
+            }
+            for (int f = 1; f < fields.length; f += 2) {
+                final int col = genreIndex(index, fields[f]);
+                if (col != -1) {
+                    listed[col] = false;
+                }
+            }
+            if (row == -1) {
+                continue;       // Genre isn't in this playlist
+            }
+            if (seen[row]) {
+                throw new FormatException("Genre " + fields[0].trim() +
+                                          " has more than one row.");
+            }
+            seen[row] = true;
+            checkSum(total_prob + other_prob * (names.size() - numListed));
+        }
+        return rows.build();
+    }
+
+    private static int genreIndex(Map<String, Integer> index, String name) {
+        final Integer genre = index.get(name.trim().toUpperCase());
+        return genre == null ? -1 : genre;
+    }
+
+    /* Maps the binary format and keeps the rows and columns of the catalog's
+     * genres. Every row's sum is checked. Runtime: O(G^2), read in bulk. */
+    private static MarkovChain readBinary(FileChannel channel, TrackCatalog catalog)
+            throws IOException, FormatException {
+        final MappedByteBuffer in =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        try {
+            in.getInt();    // Magic, already checked
+            if (in.getInt() != BINARY_VERSION) {
+                throw new FormatException("Unsupported binary Markov chain version.");
+            }
+            // Lengths and counts are checked before allocating, so a corrupt
+            // file can't ask for more than it holds
+            final int genres = in.getInt();
+            if (genres < 0 || genres > in.remaining() / 4) {
+                throw new FormatException("Binary Markov chain file is corrupt.");
+            }
+
+            // Catalog genre of each file genre, -1 if not in the playlist
+            final int[] index = new int[genres];
+            final byte[] scratch = new byte[256];
+            for (int g = 0; g < genres; ++g) {
+                final int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new FormatException("Binary Markov chain file is corrupt.");
+                }
+                final byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+                in.get(bytes, 0, length);
+                index[g] = catalog.genreIndex(new String(bytes, 0, length,
+                                              StandardCharsets.UTF_8).toUpperCase());
+            }
+            final int padded = (in.position() + 7) & ~7;
+            if (padded > in.limit() ||
+                    in.limit() - padded < (long) genres * genres * 8) {
+                throw new FormatException("Not enough rows/columns in your Markov " +
+                                          "chain (should be equal).");
+            }
+            in.position(padded);
+
+            final DoubleBuffer payload = in.asDoubleBuffer();
+            final double[] row = new double[genres];
+            final Rows rows = new Rows(catalog.numGenres());
+            for (int i = 0; i < genres; ++i) {
+                payload.get(row);
+                for (final double prob : row) {
+                    checkProb(prob);
+                }
+                final double total = sum(row);
+                if (total != 0.0) {         // Zeros: no line in the sparse source
+                    checkSum(total);
+                }
+                if (index[i] == -1) {
+                    continue;
+                }
+                for (int j = 0; j < genres; ++j) {
+                    if (index[j] != -1) {
+                        rows.add(index[i], index[j], row[j]);
+                    }
+                }
+            }
+            return rows.build();
+        } catch (BufferUnderflowException e) {
+            throw new FormatException("Binary Markov chain file is truncated.");
+        }
+    }
+
+    /* Sum with four independent accumulators, so the adds can overlap. */
+    private static double sum(double[] row) {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int j = 0;
+        for (final int n = row.length & ~3; j < n; j += 4) {
+            s0 += row[j];
+            s1 += row[j + 1];
+            s2 += row[j + 2];
+            s3 += row[j + 3];
+        }
+        for (; j < row.length; ++j) {
+            s0 += row[j];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /* Writes the chain in the binary format with these genre names. Refuses,
+     * before creating the file, a chain with a row that would not load:
+     * one summing to neither 1 nor 0, e.g. a sparse row that lost targets
+     * outside the genres it was read over. */
+    final void writeBinary(File file, String[] names) throws IOException {
+        for (int i = 0; i < size(); ++i) {
+            double total = 0.0;
+            for (int e = rowStart[i]; e < rowEnd[i]; ++e) {
+                total += probs[e];
+            }
+            try {
+                if (total != 0.0) {
+                    checkSum(total);
+                }
+            } catch (FormatException e) {
+                throw new IOException("Row " + names[i] + " sums to " + total +
+                                      ", so the binary file would not load.");
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                        new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            out.writeInt(size());
+            long written = 12;
+            for (int g = 0; g < size(); ++g) {
+                final byte[] bytes = names[g].getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                written += 4 + bytes.length;
+            }
+            for (; (written & 7) != 0; ++written) {
+                out.write(0);
+            }
+
+            final double[] row = new double[size()];
+            for (int i = 0; i < size(); ++i) {
+                Arrays.fill(row, 0.0);
+                for (int e = rowStart[i]; e < rowEnd[i]; ++e) {
+                    row[cols[e]] = probs[e];
+                }
+                for (final double prob : row) {
+                    out.writeDouble(prob);
+                }
+            }
+        }
+    }
+
+    /* Returns prob if it can be a probability. A negative entry could still
+     * leave its row summing to 1, but the samplers assume none is. */
+    private static double checkProb(double prob) throws FormatException {
+        if (!(prob >= 0.0)) {       // NaN too
+            throw new FormatException("Markov chain probabilities must not " +
+                                      "be negative.");
+        }
+        return prob;
+    }
+
+    private static void checkSum(double total_prob) throws FormatException {
+        // Catches floating-point addition errors, in either direction
+        if (Math.abs(total_prob - 1.0) > 0.00001) {
+            throw new FormatException("All probabilities do not sum to 1.");
+        }
+    }
+
+    /* Accumulates nonzero entries row by row, in any row order. */
+    private static final class Rows {
+        private final int[][] cols;
+        private final double[][] probs;
+        private final int[] lengths;
+
+        Rows(int genres) {
+            cols = new int[genres][];
+            probs = new double[genres][];
+            lengths = new int[genres];
+        }
+
+        void add(int row, int col, double prob) {
+            if (prob == 0.0) {
+                return ;
+            }
+            if (cols[row] == null) {
+                cols[row] = new int[4];
+                probs[row] = new double[4];
+            } else if (lengths[row] == cols[row].length) {
+                cols[row] = Arrays.copyOf(cols[row], lengths[row] * 2);
+                probs[row] = Arrays.copyOf(probs[row], lengths[row] * 2);
+            }
+            cols[row][lengths[row]] = col;
+            probs[row][lengths[row]++] = prob;
+        }
+
+        void checkSum(int row) throws FormatException {
+            double total_prob = 0.0;
+            for (int e = 0; e < lengths[row]; ++e) {
+                total_prob += probs[row][e];
+            }
+            MarkovChain.checkSum(total_prob);
+        }
+
+        MarkovChain build() {
+            int nnz = 0;
+            for (final int length : lengths) {
+                nnz += length;
+            }
+            final int[] start = new int[lengths.length];
+            final int[] end = new int[lengths.length];
+            final int[] allCols = new int[nnz];
+            final double[] allProbs = new double[nnz];
+            for (int row = 0, at = 0; row < lengths.length; ++row) {
+                start[row] = at;
+                if (lengths[row] > 0) {
+                    sortRow(row);
+                    System.arraycopy(cols[row], 0, allCols, at, lengths[row]);
+                    System.arraycopy(probs[row], 0, allProbs, at, lengths[row]);
+                    at += lengths[row];
+                }
+                end[row] = at;
+            }
+            return new MarkovChain(start, end, allCols, allProbs);
+        }
+
+        /* Orders a row by column and merges repeated columns. */
+        private void sortRow(int row) {
+            final int[] c = cols[row];
+            final double[] p = probs[row];
+            final int length = lengths[row];
+            boolean sorted = true;
+            for (int i = 1; i < length && sorted; ++i) {
+                sorted = c[i - 1] < c[i];
+            }
+            if (sorted) {
+                return ;
+            }
+
+            // Sort (col, entry) pairs packed in a long, then permute
+            final long[] keys = new long[length];
+            for (int i = 0; i < length; ++i) {
+                keys[i] = ((long) c[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            final int[] sortedCols = new int[length];
+            final double[] sortedProbs = new double[length];
+            int n = 0;
+            for (final long key : keys) {
+                final int col = (int) (key >>> 32);
+                final double prob = p[(int) key];
+                if (n > 0 && sortedCols[n - 1] == col) {
+                    sortedProbs[n - 1] += prob;
+                } else {
+                    sortedCols[n] = col;
+                    sortedProbs[n++] = prob;
+                }
+            }
+            cols[row] = sortedCols;
+            probs[row] = sortedProbs;
+            lengths[row] = n;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Converts a text Markov chain file (dense or sparse) into the binary
+ * format read by MarkovChain. A sparse file is converted whole, over every
+ * genre it names, so the binary file loads the same as the text for any
+ * playlist. Dense text files name no genres, so the playlist they were
+ * written for supplies the genre names.
+ *
+ *   java MarkovConverter playlist.txt chain.txt chain.mmkv
+ */
+final public class MarkovConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: java MarkovConverter " +
+                               "<playlist> <markov text file> <binary output>");
+            System.exit(2);
+        }
+
+        final List<String> genres = new ArrayList<String>();
+        try {
+            final MarkovChain sparse = MarkovChain.loadSparse(args[1], genres);
+            if (sparse != null) {
+                write(sparse, genres.toArray(new String[genres.size()]), args[2]);
+                return ;
+            }
+        } catch (MarkovChain.FormatException e) {
+            System.err.println(args[1] + ": " + e.getMessage());
+            System.exit(1);
+        }
+
+        final File playlist = new File(args[0]);
+        TrackCatalog catalog = CatalogCache.load(playlist);
+        if (catalog == null) {
+            final TrackCatalog.Builder builder = new TrackCatalog.Builder();
+            if (PlaylistLoader.load(playlist, builder) != PlaylistLoader.Status.OK) {
+                System.err.println("Not an exported iTunes playlist: " + args[0]);
+                System.exit(1);
+            }
+            catalog = builder.build();
+        }
+
+        final MarkovChain chain;
+        try {
+            chain = MarkovChain.load(args[1], catalog);
+        } catch (MarkovChain.FormatException e) {
+            System.err.println(args[1] + ": " + e.getMessage());
+            System.exit(1);
+            return ;
+        }
+        final String[] names = new String[catalog.numGenres()];
+        for (int g = 0; g < names.length; ++g) {
+            names[g] = catalog.genreKey(g);
+        }
+        write(chain, names, args[2]);
+    }
+
+    private static void write(MarkovChain chain, String[] genres, String path) {
+        try {
+            chain.writeBinary(new File(path), genres);
+        } catch (IOException e) {
+            System.err.println(path + ": " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Wrote " + chain.size() + "x" + chain.size() +
+                           " chain to " + path);
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Timings and counters of the hot paths: playlist parsing and patching
+ * (rows changed, see PlaylistDiff), Markov chain
+ * loading, picking, genre exhaustion, playback start latency (Play to the
+ * first frame handed to the mixer) and buffer underruns, plus gauges such
+ * as songs and threads playing. They are shown in the Stats window and can
+ * be written out as a snapshot for dashboards. Recording is a few adds,
+ * safe from any thread, so it stays on in normal use.
+ *
+ * When the JVM has Flight Recorder, every timing and underrun is also a
+ * JFR event (see ShufflerEvents), begun and ended around the work it
+ * times, in the "Markov Music Shuffler" category of a recording.
+ *
+ * Export with -Dshuffler.metrics=FILE: the snapshot is rewritten every
+ * -Dshuffler.metrics.period seconds (default 10), as JSON if FILE ends in
+ * .json and as text otherwise.
+ */
+final class Metrics {
+    static final String PROPERTY = "shuffler.metrics";
+    static final String PERIOD_PROPERTY = "shuffler.metrics.period";
+
+    /* A value read when a snapshot is taken. */
+    interface Gauge {
+        long value();
+    }
+
+    /* Count, total and slowest time, and units handled of an operation. */
+    static final class Timing {
+        final String name;
+        final String unit;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder units = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Timing(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        /* Records an operation started at start (System.nanoTime()), and
+         * returns how long it took. Runtime: O(1). */
+        final long record(long start, long handled) {
+            final long took = System.nanoTime() - start;
+            count.increment();
+            nanos.add(took);
+            units.add(handled);
+            long max;
+            while (took > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, took));
+            return took;
+        }
+
+        final long count() {
+            return count.sum();
+        }
+
+        final long nanos() {
+            return nanos.sum();
+        }
+
+        final long units() {
+            return units.sum();
+        }
+
+        final long maxNanos() {
+            return maxNanos.get();
+        }
+    }
+
+    private static final List<Timing> timings = new CopyOnWriteArrayList<Timing>();
+    private static final Map<String, AtomicLong> counters =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    static final boolean JFR = jfrAvailable();
+
+    static final Timing PARSE = timing("playlist.parse", "rows");
+    static final Timing PATCH = timing("playlist.patch", "rows");
+    static final Timing MARKOV = timing("markov.load", "genres");
+    static final Timing SHUFFLE = timing("shuffle", "picks");
+    static final Timing EXHAUST = timing("genre.exhaust", "genres");
+    static final Timing PLAYBACK_START = timing("playback.start", "songs");
+    static final AtomicLong UNDERRUNS = counter("audio.underruns");
+    static final AtomicLong PLAYBACK_ERRORS = counter("playback.errors");
+
+    static {
+        gauge("trackcache.hits", new Gauge() {
+            public long value() {
+                return TrackCache.hits();
+            }
+        });
+        gauge("trackcache.misses", new Gauge() {
+            public long value() {
+                return TrackCache.misses();
+            }
+        });
+        gauge("trackcache.bytes", new Gauge() {
+            public long value() {
+                return TrackCache.cachedBytes();
+            }
+        });
+        gauge("threads.live", new Gauge() {
+            public long value() {
+                return ManagementFactory.getThreadMXBean().getThreadCount();
+            }
+        });
+    }
+
+    private static ScheduledExecutorService exporter;
+
+    private Metrics() {}
+
+    private static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return jdk.jfr.FlightRecorder.isAvailable();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    static Timing timing(String name, String unit) {
+        final Timing timing = new Timing(name, unit);
+        timings.add(timing);
+        return timing;
+    }
+
+    static AtomicLong counter(String name) {
+        final AtomicLong counter = new AtomicLong();
+        counters.put(name, counter);
+        return counter;
+    }
+
+    /* Adds, or replaces, the gauge called name. */
+    static void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /* Begins the JFR event of a timing or counter, before the work it
+     * times; null without Flight Recorder. The helpers below record the
+     * timing, then end the event and commit it if a recording enables it. */
+    static Object begin(Timing timing) {
+        return JFR ? ShufflerEvents.begin(timing.name) : null;
+    }
+
+    static void parsed(long start, Object event, int rows, String playlist) {
+        PARSE.record(start, rows);
+        if (event != null) {
+            ShufflerEvents.playlistParsed(event, rows, playlist);
+        }
+    }
+
+    static void patched(long start, Object event, int changed, String playlist) {
+        PATCH.record(start, changed);
+        if (event != null) {
+            ShufflerEvents.playlistPatched(event, changed, playlist);
+        }
+    }
+
+    static void markovLoaded(long start, Object event, int genres, String markov) {
+        MARKOV.record(start, genres);
+        if (event != null) {
+            ShufflerEvents.markovLoaded(event, genres, markov);
+        }
+    }
+
+    static void shuffled(long start, Object event, int picks) {
+        SHUFFLE.record(start, picks);
+        if (event != null) {
+            ShufflerEvents.shuffled(event, picks);
+        }
+    }
+
+    static void exhausted(long start, Object event, int genre) {
+        EXHAUST.record(start, 1);
+        if (event != null) {
+            ShufflerEvents.exhausted(event, genre);
+        }
+    }
+
+    static void playbackStarted(long requested, Object event, String song) {
+        PLAYBACK_START.record(requested, 1);
+        if (event != null) {
+            ShufflerEvents.playbackStarted(event, song);
+        }
+    }
+
+    /* Counts an underrun and begins its event, ended by underrunEnded()
+     * once the track catches up. */
+    static Object underrun() {
+        UNDERRUNS.incrementAndGet();
+        return JFR ? ShufflerEvents.begin("audio.underruns") : null;
+    }
+
+    static void underrunEnded(Object event, int tracks) {
+        if (event != null) {
+            ShufflerEvents.underrunEnded(event, tracks);
+        }
+    }
+
+    /* Snapshot as aligned text, one line per metric. */
+    static String text() {
+        final StringBuilder out = new StringBuilder();
+        for (final Timing t : timings) {
+            final long count = t.count();
+            final double ms = t.nanos() / 1e6;
+            out.append(String.format("%-20s %8d ops %12d %-6s avg %9.3f ms  max %9.3f ms  %12.0f %s/s%n",
+                                     t.name, count, t.units(), t.unit,
+                                     count == 0 ? 0.0 : ms / count, t.maxNanos() / 1e6,
+                                     ms == 0 ? 0.0 : t.units() / (ms / 1e3), t.unit));
+        }
+        for (final Map.Entry<String, AtomicLong> c : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            out.append(String.format("%-20s %8d%n", c.getKey(), c.getValue().get()));
+        }
+        for (final Map.Entry<String, Gauge> g : new TreeMap<String, Gauge>(gauges).entrySet()) {
+            out.append(String.format("%-20s %8d%n", g.getKey(), g.getValue().value()));
+        }
+        return out.toString();
+    }
+
+    /* Snapshot as one JSON object; names are plain, so nothing is escaped. */
+    static String json() {
+        final StringBuilder out = new StringBuilder();
+        out.append("{\"time\":").append(System.currentTimeMillis()).append(",\"timings\":{");
+        String comma = "";
+        for (final Timing t : timings) {
+            final long nanos = t.nanos();
+            out.append(comma).append('"').append(t.name).append("\":{")
+               .append("\"count\":").append(t.count())
+               .append(",\"units\":").append(t.units())
+               .append(",\"unit\":\"").append(t.unit).append('"')
+               .append(",\"total_ms\":").append(nanos / 1e6)
+               .append(",\"max_ms\":").append(t.maxNanos() / 1e6)
+               .append(",\"per_second\":").append(nanos == 0 ? 0.0 : t.units() / (nanos / 1e9))
+               .append('}');
+            comma = ",";
+        }
+        out.append("},\"counters\":{");
+        comma = "";
+        for (final Map.Entry<String, AtomicLong> c : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            out.append(comma).append('"').append(c.getKey()).append("\":").append(c.getValue().get());
+            comma = ",";
+        }
+        out.append("},\"gauges\":{");
+        comma = "";
+        for (final Map.Entry<String, Gauge> g : new TreeMap<String, Gauge>(gauges).entrySet()) {
+            out.append(comma).append('"').append(g.getKey()).append("\":").append(g.getValue().value());
+            comma = ",";
+        }
+        return out.append("}}\n").toString();
+    }
+
+    /* Starts rewriting the snapshot file, if -Dshuffler.metrics is set. */
+    static synchronized void startExport() {
+        final String path = System.getProperty(PROPERTY);
+        if (path == null || exporter != null) {
+            return ;
+        }
+        long period;
+        try {
+            period = Math.max(1, Long.parseLong(System.getProperty(PERIOD_PROPERTY, "10")));
+        } catch (NumberFormatException e) {
+            period = 10;
+        }
+        exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "metrics-export");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        exporter.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                export();
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /* Writes the snapshot now, if -Dshuffler.metrics is set. A temporary
+     * file is renamed over it, so readers never see half a snapshot. */
+    static void export() {
+        final String path = System.getProperty(PROPERTY);
+        if (path == null) {
+            return ;
+        }
+        final File file = new File(path);
+        final File temp = new File(path + ".tmp");
+        try {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(temp),
+                                                     StandardCharsets.UTF_8)) {
+                out.write(path.toLowerCase().endsWith(".json") ? json() : text());
+            }
+            if (!temp.renameTo(file)) {
+                // Windows won't rename over an existing file
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Cannot replace " + file);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Problem writing metrics to " + path);
+            System.out.println(e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * Local log of every song played, one "millis <tab> GENRE <tab> location"
+ * line each, kept in ~/.markov-music-shuffler/history.log. Plays are also
+ * fed to a TransitionLearner, seeded from the existing log on startup, and
+ * every SNAPSHOT_EVERY plays the learned chain is written next to the log
+ * as learned-markov.txt, ready to be picked as the Markov chain file.
+ *
+ * played() only queues the play, so playback never waits on the file. One
+ * background thread replays the log, then learns, logs and snapshots the
+ * queued plays in order, so plays made during the replay come after it.
+ *
+ * Set -Dshuffler.history=off to disable, or to a directory to move it.
+ */
+final class PlayHistory implements Runnable {
+    static final String PROPERTY = "shuffler.history";
+    static final int SNAPSHOT_EVERY = 25;
+
+    private static PlayHistory instance;
+
+    private final File log;
+    private final File chain;
+    private final BlockingQueue<Play> plays = new LinkedBlockingQueue<Play>();
+    // Writer thread only
+    private final TransitionLearner learner =
+            new TransitionLearner(TransitionLearner.DEFAULT_ALPHA);
+    private Writer out;
+    private int sinceSnapshot;
+
+    private PlayHistory(File dir) {
+        log = new File(dir, "history.log");
+        chain = new File(dir, "learned-markov.txt");
+    }
+
+    /* Opens the history and replays its log in the background; null if disabled. */
+    static synchronized PlayHistory start() {
+        final String setting = System.getProperty(PROPERTY,
+                new File(System.getProperty("user.home"),
+                         ".markov-music-shuffler").getPath());
+        if (instance != null || setting.equalsIgnoreCase("off")) {
+            return instance;
+        }
+
+        final File dir = new File(setting);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("Play history disabled, cannot create " + dir);
+            return null;
+        }
+        instance = new PlayHistory(dir);
+        final Thread writer = new Thread(instance, "play-history");
+        writer.setDaemon(true);
+        writer.start();
+        return instance;
+    }
+
+    /* Records one play. Called from playback threads, never blocks. */
+    final void played(String genre, String location) {
+        plays.add(new Play(System.currentTimeMillis(), genre, location));
+    }
+
+    public void run() {
+        open();
+        try {
+            while (true) {
+                record(plays.take());
+            }
+        } catch (InterruptedException e) {
+            // Stopped with the JVM
+        }
+    }
+
+    /* Learns from the existing log, then opens it for appending. */
+    private void open() {
+        if (log.isFile()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(log), StandardCharsets.UTF_8))) {
+                learner.read(br);
+            } catch (IOException e) {
+                System.out.println("Could not read " + log + ": " + e);
+            }
+        }
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(log, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.out.println("Could not open " + log + ": " + e);
+        }
+    }
+
+    private void record(Play play) {
+        learner.observe(play.time, play.genre);
+        if (out != null) {
+            try {
+                out.write(play.time + "\t" + play.genre + "\t" + play.location + "\n");
+                // Flushed once the queue is empty, a burst is written together
+                if (plays.isEmpty()) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                System.out.println("Could not write " + log + ": " + e);
+            }
+        }
+
+        if (++sinceSnapshot >= SNAPSHOT_EVERY) {
+            sinceSnapshot = 0;
+            try {
+                learner.write(chain);
+            } catch (IOException e) {
+                System.out.println("Could not write " + chain + ": " + e);
+            }
+        }
+    }
+
+    private static final class Play {
+        final long time;
+        final String genre;
+        final String location;
+
+        Play(long time, String genre, String location) {
+            this.time = time;
+            this.genre = genre;
+            this.location = location;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+
+/**
+ * Every song playing, by path, oldest first for each path. Songs are
+ * started and stopped from the EDT and from playback threads without a
+ * shared lock: each path has its own lock-free queue and the count is an
+ * atomic. Changes are published to the Listener on the EDT, coalesced so
+ * a burst of them is one event.
+ */
+final class PlaybackRegistry {
+    interface Listener {
+        /* Called on the EDT with the number of songs now playing. */
+        void playingChanged(int playing);
+    }
+
+    private final Map<String, Queue<MP3>> byPath =
+            new ConcurrentHashMap<String, Queue<MP3>>();
+    private final AtomicInteger playing = new AtomicInteger();
+    private final AtomicInteger generation = new AtomicInteger();  // Bumped by stopAll()
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final Listener listener;
+
+    PlaybackRegistry(Listener listener) {
+        this.listener = listener;
+    }
+
+    final int size() {
+        return playing.get();
+    }
+
+    /* Registers a song that is about to play. Runtime: O(1). */
+    final void add(MP3 song) {
+        add(song, generation.get());
+    }
+
+    private void add(MP3 song, int gen) {
+        song.generation = gen;
+        Queue<MP3> sameSong = byPath.get(song.getFilename());
+        if (sameSong == null) {
+            final Queue<MP3> created = new ConcurrentLinkedQueue<MP3>();
+            sameSong = byPath.putIfAbsent(song.getFilename(), created);
+            if (sameSong == null) {
+                sameSong = created;
+            }
+        }
+        sameSong.add(song);
+        playing.incrementAndGet();
+        publish();
+    }
+
+    /* Unregisters a song without stopping it, false if it already was,
+     * e.g. because it was stopped. Runtime: O(k), k instances of its path. */
+    final boolean remove(MP3 song) {
+        final Queue<MP3> sameSong = byPath.get(song.getFilename());
+        if (sameSong == null || !sameSong.remove(song)) {
+            return false;
+        }
+        playing.decrementAndGet();
+        publish();
+        return true;
+    }
+
+    /* Stops one song. Runtime: O(k). */
+    final boolean stop(MP3 song) {
+        song.close();
+        return remove(song);
+    }
+
+    /* Stops the least recently started instance of path, returns it or
+     * null if path isn't playing. Runtime: O(1). */
+    final MP3 stopOldest(String path) {
+        final Queue<MP3> sameSong = byPath.get(path);
+        final MP3 song = sameSong == null ? null : sameSong.poll();
+        if (song == null) {
+            return null;
+        }
+        song.close();
+        playing.decrementAndGet();
+        publish();
+        return song;
+    }
+
+    /* Stops every song. Runtime: O(n). */
+    final void stopAll() {
+        generation.incrementAndGet();
+        for (final Queue<MP3> sameSong : byPath.values()) {
+            MP3 song;
+            while ((song = sameSong.poll()) != null) {
+                song.close();
+                playing.decrementAndGet();
+            }
+        }
+        publish();
+    }
+
+    /* Replaces a song that finished with the one continuing after it,
+     * unless either was stopped meanwhile. Runtime: O(k). */
+    final boolean follow(MP3 finished, MP3 next) {
+        if (!remove(finished)) {
+            return false;
+        }
+        add(next, finished.generation);
+        // A stopAll() that began before the add may have missed next
+        if (generation.get() != finished.generation) {
+            stop(next);
+            return false;
+        }
+        return true;
+    }
+
+    /* Any one song playing, null if none. */
+    final MP3 any() {
+        for (final Queue<MP3> sameSong : byPath.values()) {
+            final MP3 song = sameSong.peek();
+            if (song != null) {
+                return song;
+            }
+        }
+        return null;
+    }
+
+    private void publish() {
+        if (pending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    pending.set(false);
+                    listener.playingChanged(playing.get());
+                }
+            });
+        }
+    }
+}
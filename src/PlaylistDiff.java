@@ -0,0 +1,146 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Re-imports a regenerated export by applying only its changed rows to
+ * the catalog it was last loaded into. Each row is tokenized and hashed
+ * over the columns the catalog keeps (see PlaylistParser.trackHash()); a
+ * row whose hash an old track has is that track, unchanged, and only the
+ * other rows are turned into Strings. Old tracks no row matched are
+ * removed. A track whose genre, or anything else shown, changed is
+ * removed and added again, so other columns changing (play counts, dates)
+ * cost nothing.
+ *
+ * The export is still read once, but there are no Strings, dictionary
+ * lookups or sort for unchanged rows. The patched catalog has its tracks
+ * in file order, as a fresh parse does, so a seeded shuffle of it is the
+ * same as one of a fresh parse. Dictionary entries of removed tracks are
+ * kept, so once more than MAX_UNUSED of them are unused the export is
+ * parsed afresh instead.
+ */
+final class PlaylistDiff {
+    /* Past this fraction of rows changed, a full parse is cheaper. */
+    static final double MAX_CHANGED = 0.25;
+    /* Past this fraction of dictionary entries unused, parse to drop them. */
+    static final double MAX_UNUSED = 0.25;
+
+    private PlaylistDiff() {}
+
+    /* The catalog of export made by patching old, old itself if no track
+     * changed or moved, or null if too many changed, too many dictionary
+     * entries would be unused or the export isn't a playlist.
+     * Runtime: O(n) to read the export and reorder the tracks, plus O(c)
+     * for c changed rows. */
+    static TrackCatalog patch(File export, TrackCatalog old) throws IOException {
+        final long start = System.nanoTime();
+        final Object event = Metrics.begin(Metrics.PATCH);
+        final int n = old.size();
+        final int max_changed = (int) (n * MAX_CHANGED);
+        final Rows rows = new Rows(old);
+        // The old track of each row in file order, or -1 - r for added row r
+        final int[] order = new int[n + max_changed];
+        final List<String[]> added = new ArrayList<String[]>();
+        int numRows = 0;
+        int numKept = 0;
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(export), Charset.forName("UTF-16")))) {
+            final PlaylistParser parser = new PlaylistParser(br);
+            if (!parser.nextLine() || !parser.isHeader()) {
+                return null;            // Left to the full parse to report
+            }
+            while (parser.nextLine()) {
+                if (parser.numColumns() < PlaylistParser.COLUMNS) {
+                    continue;
+                }
+                final int track = rows.claim(parser.trackHash());
+                if (track != -1) {
+                    order[numRows++] = track;
+                    ++numKept;
+                } else if (added.size() == max_changed) {
+                    return null;
+                } else {
+                    order[numRows++] = -1 - added.size();
+                    added.add(new String[] {
+                        parser.field(PlaylistParser.NAME),
+                        parser.field(PlaylistParser.ARTIST),
+                        parser.field(PlaylistParser.GENRE),
+                        parser.rawField(PlaylistParser.LOCATION)
+                    });
+                }
+            }
+        }
+
+        final int changed = added.size() + n - numKept;
+        if (changed > max_changed) {
+            return null;
+        }
+        final TrackCatalog patched = old.patch(order, numRows, added);
+        if (patched != old &&
+                patched.unusedEntries() > patched.dictionarySize() * MAX_UNUSED) {
+            return null;
+        }
+        Metrics.patched(start, event, changed, export.getPath());
+        return patched;
+    }
+
+    /**
+     * The old tracks by row hash, in an open addressing table. Tracks with
+     * the same hash, i.e. duplicate rows, are chained, and each row of the
+     * export claims one.
+     */
+    private static final class Rows {
+        private final long[] hashes;
+        private final int[] firsts;         // First unclaimed track + 1 per slot,
+                                            // 0 if empty, -1 once all are claimed
+        private final int[] nexts;          // Next track with the same hash, -1 if none
+        private final int mask;
+
+        Rows(TrackCatalog catalog) {
+            final int n = catalog.size();
+            final int capacity = Integer.highestOneBit(Math.max(n, 1) * 2) * 2;
+            hashes = new long[capacity];
+            firsts = new int[capacity];
+            nexts = new int[n];
+            mask = capacity - 1;
+            Arrays.fill(nexts, -1);
+            // Backwards, so a chain is in catalog order
+            for (int t = n - 1; t >= 0; --t) {
+                final long hash = catalog.trackHash(t);
+                final int slot = slot(hash);
+                if (firsts[slot] != 0) {
+                    nexts[t] = firsts[slot] - 1;
+                }
+                hashes[slot] = hash;
+                firsts[slot] = t + 1;
+            }
+        }
+
+        private int slot(long hash) {
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (firsts[slot] != 0 && hashes[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /* Takes the next unclaimed track with this hash, -1 if none. Runtime: O(1). */
+        final int claim(long hash) {
+            final int slot = slot(hash);
+            if (firsts[slot] <= 0) {
+                return -1;
+            }
+            final int first = firsts[slot] - 1;
+            firsts[slot] = nexts[first] == -1 ? -1 : nexts[first] + 1;
+            return first;
+        }
+    }
+}
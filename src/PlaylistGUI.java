@@ -1,26 +1,32 @@
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.Iterator;
-import java.util.Queue;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.FlowLayout;
 import java.awt.GridLayout;
+import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 
@@ -34,27 +40,61 @@ import javax.swing.filechooser.FileNameExtensionFilter;
  */
 @SuppressWarnings("serial")
 final public class PlaylistGUI extends JFrame {
+    private static final int PLAYBACK_THREADS = 32;
+    private static final String TITLE = "Markov Music Shuffler";
+    private static final int ENDLESS_AHEAD = 100;   // Endless songs drawn past the playing one
+    private static final int POSITION_STEPS = 1000;
+    private static final int RESUME_SONGS = 100;
+
     private JList<String> myShuffle;
-    private List<String> songPaths;
-    private List<String> ogPlaylist;                // List of all songs in playlist
-    private List<Integer> usedIndices;
-    private Map<String, Integer> genres;
-    private Map<String, Queue<MP3>> playingMP3s;    // Bootleg multimap
-    private int multimap_size;
-    private boolean wasShuffled;
+    private volatile TrackCatalog catalog;          // All songs in playlist
+    private volatile int[] shuffle;                 // Catalog index of each shuffle entry
+    private volatile int shuffle_length;            // Entries of shuffle shown so far
+    private ShuffleListModel shuffleModel;          // EDT only
+    private ShuffleEngine.Walk walk;                // Draws an endless shuffle, EDT only
+    private final PlaybackRegistry playing;         // Every song playing
+    private boolean wasShuffled;                    // EDT only
+    private final PlayHistory history;
+    private final PlaylistWatcher watcher;          // Null if watching is off
+    private final AudioMixer mixer = new AudioMixer();  // Plays every song
+    private final ExecutorService playback = newPlaybackExecutor();
     private final JButton next_button = new JButton("Next");
     private final JButton prev_button = new JButton("Previous");
     private final JCheckBox repeat = new JCheckBox("Repeat");
     private final JCheckBox cont_play = new JCheckBox("Continuous Play");
+    private final JButton shuffleButton = new JButton("Shuffle");
+    private final JButton cancelButton = new JButton("Cancel");
+    private final JButton playButton = new JButton("Play");
+    private final JButton blendButton = new JButton("Blend Play");
+    private final JButton stopButton = new JButton("Stop");
+    private final JButton stopAllButton = new JButton("Stop All");
+    private final JProgressBar shuffleProgress = new JProgressBar(0, 100);
+    private ShuffleWorker shuffler;                 // Shuffle being made, if any
+    private final JSlider positionSlider = new JSlider(0, POSITION_STEPS, 0);
+    private final JLabel positionLabel = new JLabel(" ");
+    private Timer positionTimer;
+    private boolean showingPosition;                // EDT only, slider moved by the timer
+    private JDialog statsDialog;                    // EDT only
+    // Frame each song was stopped at, to resume from; EDT only
+    @SuppressWarnings("serial")
+    private final Map<String, Integer> resumeFrames =
+            new LinkedHashMap<String, Integer>() {
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > RESUME_SONGS;
+                }
+            };
 
     public PlaylistGUI() {
-        songPaths = new ArrayList<String>();
-        ogPlaylist = new ArrayList<String>();
-        usedIndices = new ArrayList<Integer>();
-        genres = new LinkedHashMap<String, Integer>();
-        playingMP3s = new HashMap<String, Queue<MP3>>();
-        multimap_size = 0;
+        shuffle = new int[0];
+        playing = new PlaybackRegistry(new PlaybackRegistry.Listener() {
+            final public void playingChanged(int num_playing) {
+                updatePlayControls(num_playing);
+            }
+        });
         wasShuffled = false;
+        history = PlayHistory.start();
+        watcher = PlaylistWatcher.start();
+        registerGauges();
 
         initComponents();
     }
@@ -65,17 +105,14 @@ final public class PlaylistGUI extends JFrame {
                             "Normal text file (*.txt)", "txt"));
 
         final JTextField listLength = new JTextField(5);
+        final JCheckBox endless = new JCheckBox("Endless");
+        final JTextField seedField = new JTextField(10);
         final JTextField startGenre = new JTextField(10);
         final JTextField markovPathField = new JTextField(31);
         final JTextField playlistPathField = new JTextField(35);
 
         final JButton playlistBrowseButton = new JButton("Browse...");
         final JButton markovBrowseButton = new JButton("Browse...");
-        final JButton shuffleButton = new JButton("Shuffle");
-        final JButton playButton = new JButton("Play");
-        final JButton blendButton = new JButton("Blend Play");
-        final JButton stopButton = new JButton("Stop");
-        final JButton stopAllButton = new JButton("Stop All");
 
         playlistBrowseButton.addActionListener(new ActionListener() {
             final public void actionPerformed(ActionEvent e) {
@@ -99,7 +136,9 @@ final public class PlaylistGUI extends JFrame {
             final public void actionPerformed(ActionEvent e) {
                 int num_songs;
                 try {
-                    num_songs = Integer.parseInt(listLength.getText());
+                    final String text = listLength.getText().trim();
+                    num_songs = endless.isSelected() && text.equals("")
+                            ? ENDLESS_AHEAD : Integer.parseInt(text);
                 } catch (NumberFormatException j) {
                     String message = "Please insert a numerical value in the " +
                                      "\"number of songs\" text field.";
@@ -109,29 +148,50 @@ final public class PlaylistGUI extends JFrame {
                     return ;
                 }
 
-                playButton.setEnabled(true);
-                blendButton.setEnabled(true);
-                stopButton.setEnabled(true);
-                stopAllButton.setEnabled(true);
-                synchronized (PlaylistGUI.this) {
-                    if (multimap_size == 0) {
-                        cont_play.setEnabled(true);
-                        repeat.setEnabled(true);
-                    } else {
-                        wasShuffled = true;
-                        cont_play.setEnabled(false);
-                        cont_play.setSelected(false);
-                        repeat.setEnabled(false);
-                        repeat.setSelected(false);
-                    }
-                    prev_button.setEnabled(false);
-                    next_button.setEnabled(false);
-                    shuffleSongs(playlistPathField.getText(),
-                                 startGenre.getText().toUpperCase(),
-                                 markovPathField.getText(), num_songs);
+                long seed;
+                try {
+                    final String text = seedField.getText().trim();
+                    seed = text.equals("") ? new Random().nextLong()
+                                           : Long.parseLong(text);
+                } catch (NumberFormatException j) {
+                    String message = "Please insert a whole number in the " +
+                                     "\"seed\" text field, or leave it " +
+                                     "empty for a random shuffle.";
+                    JOptionPane.showMessageDialog(PlaylistGUI.this, message,
+                                                  "Invalid Seed",
+                                                  JOptionPane.ERROR_MESSAGE);
+                    return ;
+                }
+
+                if (playing.size() == 0) {
+                    cont_play.setEnabled(true);
+                    repeat.setEnabled(true);
+                } else {
+                    wasShuffled = true;
+                    cont_play.setEnabled(false);
+                    cont_play.setSelected(false);
+                    repeat.setEnabled(false);
+                    repeat.setSelected(false);
+                }
+                prev_button.setEnabled(false);
+                next_button.setEnabled(false);
+                shuffleSongs(playlistPathField.getText(),
+                             startGenre.getText().toUpperCase(),
+                             markovPathField.getText(), num_songs, seed,
+                             endless.isSelected());
+            }
+        });
+
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(new ActionListener() {
+            final public void actionPerformed(ActionEvent e) {
+                if (shuffler != null) {
+                    shuffler.cancel(false);
                 }
             }
         });
+        shuffleProgress.setPreferredSize(new Dimension(200, 20));
+        shuffleProgress.setVisible(false);
 
         playButton.setEnabled(false);
         playButton.addActionListener(new ActionListener() {
@@ -146,8 +206,8 @@ final public class PlaylistGUI extends JFrame {
                     return ;
                 }
 
-                closeSongs();
-                playSong(songPaths.get(usedIndices.get(index)), index);
+                playing.stopAll();
+                playSong(getSongPath(index), index);
             }
         });
 
@@ -164,9 +224,7 @@ final public class PlaylistGUI extends JFrame {
                     return ;
                 }
 
-                synchronized (PlaylistGUI.this) {
-                    playSong(songPaths.get(usedIndices.get(index)), index);
-                }
+                playSong(getSongPath(index), index);
             }
         });
 
@@ -183,8 +241,10 @@ final public class PlaylistGUI extends JFrame {
                     return ;
                 }
 
-                synchronized (PlaylistGUI.this) {
-                    closeSong(songPaths.get(usedIndices.get(index)));
+                final MP3 stopped = playing.stopOldest(getSongPath(index));
+                if (stopped != null && stopped.frames() > 0) {
+                    // Playing it again carries on from here
+                    resumeFrames.put(stopped.getFilename(), stopped.position());
                 }
             }
         });
@@ -192,26 +252,21 @@ final public class PlaylistGUI extends JFrame {
         stopAllButton.setEnabled(false);
         stopAllButton.addActionListener(new ActionListener() {
             final public void actionPerformed(ActionEvent e) {
-                closeSongs();
+                playing.stopAll();
             }
         });
 
         prev_button.setEnabled(false);
         prev_button.addActionListener(new ActionListener() {
             final public void actionPerformed(ActionEvent e) {
-                final MP3 current_song;
-                synchronized (PlaylistGUI.this) {
-                    current_song = playingMP3s.values().iterator().next().peek();
-                    if (current_song == null) {
-                        return ;
-                    }
-                    playingMP3s = new HashMap<String, Queue<MP3>>();
-                    multimap_size = 0;
+                final MP3 current_song = playing.any();
+                if (current_song == null) {
+                    return ;
                 }
-                current_song.close();
+                playing.stop(current_song);
 
                 final int prev_index = current_song.shuffle_index - 1;
-                playSong(songPaths.get(usedIndices.get(prev_index)), prev_index);
+                playSong(getSongPath(prev_index), prev_index);
                 myShuffle.setSelectedIndex(prev_index);
             }
         });
@@ -219,19 +274,14 @@ final public class PlaylistGUI extends JFrame {
         next_button.setEnabled(false);
         next_button.addActionListener(new ActionListener() {
             final public void actionPerformed(ActionEvent e) {
-                final MP3 current_song;
-                synchronized (PlaylistGUI.this) {
-                    current_song = playingMP3s.values().iterator().next().peek();
-                    if (current_song == null) {
-                        return ;
-                    }
-                    playingMP3s = new HashMap<String, Queue<MP3>>();
-                    multimap_size = 0;
+                final MP3 current_song = playing.any();
+                if (current_song == null) {
+                    return ;
                 }
-                current_song.close();
+                playing.stop(current_song);
 
                 final int next_index = current_song.shuffle_index + 1;
-                playSong(songPaths.get(usedIndices.get(next_index)), next_index);
+                playSong(getSongPath(next_index), next_index);
                 myShuffle.setSelectedIndex(next_index);
             }
         });
@@ -250,20 +300,58 @@ final public class PlaylistGUI extends JFrame {
             }
         });
 
+        positionSlider.setEnabled(false);
+        positionSlider.addChangeListener(new ChangeListener() {
+            final public void stateChanged(ChangeEvent e) {
+                if (showingPosition || positionSlider.getValueIsAdjusting()) {
+                    return ;
+                }
+                final MP3 song = playing.size() == 1 ? playing.any() : null;
+                final int frames = song == null ? -1 : song.frames();
+                if (frames > 0) {
+                    song.seek((int) ((long) positionSlider.getValue() * frames /
+                                     POSITION_STEPS));
+                }
+            }
+        });
+        positionLabel.setPreferredSize(new Dimension(90, 20));
+        positionLabel.setHorizontalAlignment(SwingConstants.CENTER);
+        positionTimer = new Timer(250, new ActionListener() {
+            final public void actionPerformed(ActionEvent e) {
+                showPosition();
+            }
+        });
+        positionTimer.start();
+
+        final JButton statsButton = new JButton("Stats");
+        statsButton.setMargin(new Insets(2, 6, 2, 6));
+        statsButton.addActionListener(new ActionListener() {
+            final public void actionPerformed(ActionEvent e) {
+                showStats();
+            }
+        });
+
         myShuffle = new JList<String>();
         myShuffle.setVisibleRowCount(-1);
         myShuffle.setLayoutOrientation(JList.VERTICAL);
         myShuffle.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // Fixed size rows, measured once from a long sample song, so only the
+        // visible ones are ever rendered; longer rows are cut off
+        final Dimension cell = myShuffle.getCellRenderer().getListCellRendererComponent(
+                myShuffle, "A Rather Long Song Title (Extended Mix) by : Some Artist " +
+                "Featuring Another         Alternative Rock", 0, false, false)
+                .getPreferredSize();
+        myShuffle.setFixedCellHeight(cell.height);
+        myShuffle.setFixedCellWidth(cell.width);
         JScrollPane listScroller = new JScrollPane(myShuffle);
         
 
         // For layout purposes, put the buttons in a separate panel
-        JPanel topPanel = new JPanel(new GridLayout(6,1));
+        JPanel topPanel = new JPanel(new GridLayout(5,1));
         topPanel.add(new JLabel("  Instructions for formating input playlist"));
-        topPanel.add(new JLabel("  Step 1: Sort your playlist by genre."));
-        topPanel.add(new JLabel("  Step 2: Right-click the playlist, then Export..."));
-        topPanel.add(new JLabel("  Step 3: Save as a text file."));
-        topPanel.add(new JLabel("  Step 4: Save Markov chain with the genre " +
+        topPanel.add(new JLabel("  Step 1: Right-click the playlist, then Export..."));
+        topPanel.add(new JLabel("  Step 2: Save as a text file."));
+        topPanel.add(new JLabel("  Step 3: Save Markov chain with the genre " +
                                 "probabilities in alphabetical order, of the genre,"));
         topPanel.add(new JLabel(String.format("%-16s", "") +
                                 "separated by whitespace (optional)."));
@@ -279,6 +367,7 @@ final public class PlaylistGUI extends JFrame {
         mainPanel.add(startGenre);
         mainPanel.add(new JLabel("Number of songs"));
         mainPanel.add(listLength);
+        mainPanel.add(endless);
         mainPanel.add(shuffleButton);
         mainPanel.add(playButton);
         mainPanel.add(blendButton);
@@ -288,25 +377,117 @@ final public class PlaylistGUI extends JFrame {
         mainPanel.add(next_button);
         mainPanel.add(repeat);
         mainPanel.add(cont_play);
+        final JPanel seedPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 5, 0));
+        seedPanel.add(new JLabel("Seed (optional)"));
+        seedPanel.add(seedField);
+        mainPanel.add(seedPanel);
+        mainPanel.add(shuffleProgress);
+        mainPanel.add(cancelButton);
+
+        final JPanel positionPanel = new JPanel(new BorderLayout());
+        positionPanel.add(positionSlider, BorderLayout.CENTER);
+        final JPanel positionEast = new JPanel(new BorderLayout());
+        positionEast.add(positionLabel, BorderLayout.CENTER);
+        positionEast.add(statsButton, BorderLayout.EAST);
+        positionPanel.add(positionEast, BorderLayout.EAST);
+        final JPanel songPanel = new JPanel(new BorderLayout());
+        songPanel.add(listScroller, BorderLayout.CENTER);
+        songPanel.add(positionPanel, BorderLayout.SOUTH);
 
         add(topPanel, BorderLayout.PAGE_START);
         add(mainPanel, BoxLayout.Y_AXIS);
-        add(listScroller, BorderLayout.SOUTH);
+        add(songPanel, BorderLayout.SOUTH);
 
         pack();
         setResizable(false);
-        setSize(new Dimension(565, 573));
-        setTitle("Markov Music Shuffler");
-        listScroller.setPreferredSize(new Dimension(563, 295));
+        setSize(new Dimension(565, 603));
+        setTitle(TITLE);
+        listScroller.setPreferredSize(new Dimension(563, 270));
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            final public void windowClosing(WindowEvent e) {
+                shutdown();
+            }
+        });
+    }
+
+    /* Decodes songs, one thread each. Threads are named, reused between
+     * songs and retired when idle; past PLAYBACK_THREADS songs at once,
+     * further songs wait for one to stop. */
+    final private static ExecutorService newPlaybackExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                PLAYBACK_THREADS, PLAYBACK_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    final public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "playback-" +
+                                                    count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /* Gauges of what this window is playing, for the Stats window and the
+     * metrics export. */
+    final private void registerGauges() {
+        Metrics.gauge("players.active", new Metrics.Gauge() {
+            final public long value() {
+                return playing.size();
+            }
+        });
+        Metrics.gauge("mixer.tracks", new Metrics.Gauge() {
+            final public long value() {
+                return mixer.activeTracks();
+            }
+        });
+        Metrics.gauge("threads.playback", new Metrics.Gauge() {
+            final public long value() {
+                return ((ThreadPoolExecutor) playback).getPoolSize();
+            }
+        });
+    }
+
+    /* Opens the Stats window, or brings it to the front. */
+    final private void showStats() {
+        if (statsDialog != null && statsDialog.isDisplayable()) {
+            statsDialog.toFront();
+            return ;
+        }
+        statsDialog = new JDialog(this, TITLE + " Stats", false);
+        statsDialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        statsDialog.add(new StatsPanel());
+        statsDialog.pack();
+        statsDialog.setLocationRelativeTo(this);
+        statsDialog.setVisible(true);
+    }
+
+    /* Stops every song and the threads playing them. Runtime: O(n). */
+    final void shutdown() {
+        positionTimer.stop();
+        playing.stopAll();
+        playback.shutdown();
+        try {
+            playback.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mixer.close();
+        if (watcher != null) {
+            watcher.close();
+        }
+        Metrics.export();
     }
 
     /* Series of getters and setters. */
-    final private synchronized int getShuffleIndex(JList<String> shuffle) {
+    final private int getShuffleIndex(JList<String> shuffle) {
         return shuffle.getSelectedIndex();
     }
 
-    final public synchronized boolean isRepeatSelected() {
+    final public boolean isRepeatSelected() {
         return repeat.isSelected();
     }
 
@@ -315,314 +496,294 @@ final public class PlaylistGUI extends JFrame {
     }
 
     final public int numShuffleSongs() {
-        return usedIndices.size();
+        return shuffle_length;
     }
 
     final public String getSongPath(int shuffle_index) {
-        return songPaths.get(usedIndices.get(shuffle_index));
+        return catalog.location(shuffle[shuffle_index]);
+    }
+
+    final PlayHistory getHistory() {
+        return history;
+    }
+
+    final AudioMixer getMixer() {
+        return mixer;
+    }
+
+    final ExecutorService getPlayback() {
+        return playback;
     }
 
     final void setNextButtonEnabled(boolean bool) {
         next_button.setEnabled(bool);
     }
 
-    final void setShuffleSelect(int shuffle_index) {
-        myShuffle.setSelectedIndex(shuffle_index);
+    final PlaybackRegistry getPlaying() {
+        return playing;
     }
 
-    /* Plays one song, and adjusts GUI. Runtime: O(1). */
-    final public void playSong(final String path, final int shuffle_index) {
+    /* Selects a shuffle entry, from any thread. */
+    final void setShuffleSelect(final int shuffle_index) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                extendShuffle(shuffle_index);
+                myShuffle.setSelectedIndex(shuffle_index);
+            }
+        });
+    }
+
+    /* Song at shuffle_index, not yet playing. Runtime: O(log G). */
+    final MP3 newSong(final String path, final int shuffle_index) {
         final MP3 newmp3 = new MP3(path, shuffle_index);
-        Queue<MP3> sameSong = playingMP3s.get(path);
-        if (sameSong == null) {
-            sameSong = new LinkedList<MP3>();
-            playingMP3s.put(path, sameSong);
+        newmp3.genre = catalog.genreKey(catalog.genreOf(shuffle[shuffle_index]));
+        return newmp3;
+    }
+
+    /* Plays one song, from where Stop left it if it was stopped part way,
+     * and adjusts GUI. EDT only. Runtime: O(1). */
+    final public void playSong(final String path, final int shuffle_index) {
+        extendShuffle(shuffle_index);
+        final MP3 newmp3 = newSong(path, shuffle_index);
+        final Integer resume = resumeFrames.remove(path);
+        if (resume != null) {
+            newmp3.startFrame = resume;     // Stopped part way through
+        }
+        startSong(newmp3, null);
+    }
+
+    /* Moves the slider to where the one song playing is. EDT only. */
+    final private void showPosition() {
+        final MP3 song = playing.size() == 1 ? playing.any() : null;
+        final int frames = song == null ? -1 : song.frames();
+        positionSlider.setEnabled(frames > 0);
+        if (frames <= 0) {
+            showingPosition = true;
+            positionSlider.setValue(0);
+            showingPosition = false;
+            positionLabel.setText(" ");
+            return ;
+        }
+        final int position = Math.min(song.position(), frames);
+        if (!positionSlider.getValueIsAdjusting()) {
+            showingPosition = true;
+            positionSlider.setValue((int) ((long) position * POSITION_STEPS / frames));
+            showingPosition = false;
+        }
+        positionLabel.setText(time(song.seconds(position)) + " / " +
+                              time(song.seconds(frames)));
+    }
+
+    private static String time(double seconds) {
+        return String.format("%d:%02d", (int) seconds / 60, (int) seconds % 60);
+    }
+
+    /* Draws more of an endless shuffle, so ENDLESS_AHEAD songs follow
+     * shuffle_index; continuous play never reaches its end. EDT only.
+     * Runtime: O(1) amortized per song drawn. */
+    final private void extendShuffle(int shuffle_index) {
+        final int wanted = shuffle_index + 1 + ENDLESS_AHEAD;
+        if (walk == null || wanted <= shuffle_length) {
+            return ;
+        }
+        int[] picks = shuffle;
+        if (wanted > picks.length) {
+            picks = Arrays.copyOf(picks, Math.max(wanted, picks.length * 2));
+            shuffleModel.grow(picks);
         }
-        sameSong.add(newmp3);
-        newmp3.play(this);
+        for (int q = shuffle_length; q < wanted; ++q) {
+            picks[q] = walk.nextInt();
+        }
+        // Filled in before the length grows, so playback threads see them
+        shuffle = picks;
+        shuffleModel.showFirst(wanted);
+        shuffle_length = wanted;
+    }
 
-        if (++multimap_size > 1) {
+    /* Plays a song, continuing on track if an earlier song handed it over.
+     * Runtime: O(1). */
+    final void startSong(final MP3 newmp3, final AudioMixer.Track track) {
+        playing.add(newmp3);
+        newmp3.play(this, track);
+    }
+
+    /* Adjusts the GUI to the number of songs playing. Runtime: O(1). */
+    final private void updatePlayControls(int num_playing) {
+        if (num_playing == 0) {
+            wasShuffled = false;
+            repeat.setEnabled(true);
+            cont_play.setEnabled(true);
+            prev_button.setEnabled(false);
+            next_button.setEnabled(false);
+        } else if (num_playing == 1) {
+            final MP3 song = playing.any();
+            final int index = song == null ? -1 : song.shuffle_index;
+            repeat.setEnabled(!wasShuffled);
+            cont_play.setEnabled(!wasShuffled);
+            prev_button.setEnabled(!wasShuffled && index > 0);
+            next_button.setEnabled(!wasShuffled && index != -1 &&
+                    index < shuffle_length - 1);
+        } else {
             repeat.setEnabled(false);
             repeat.setSelected(false);
             cont_play.setEnabled(false);
             cont_play.setSelected(false);
             prev_button.setEnabled(false);
             next_button.setEnabled(false);
-        } else {
-            prev_button.setEnabled(!wasShuffled && shuffle_index > 0);
-            next_button.setEnabled(!wasShuffled &&
-                    shuffle_index < usedIndices.size() - 1);
         }
     }
 
-    /* Stops one song, and adjusts the GUI accordingly.
-     * If the selected song to stop has multiple
-     * instances playing, stop the least recent. Runtime: O(1).
-     */
-    final public boolean closeSong(final String path) {
-        if (playingMP3s.containsKey(path)) {
-            final Queue<MP3> sameSongs = playingMP3s.get(path);
-            sameSongs.remove().close();
-            if (sameSongs.isEmpty()) {
-                playingMP3s.remove(path);
-            }
-
-            switch (--multimap_size) {
-                case 0: wasShuffled = false;
-                        repeat.setEnabled(true);
-                        cont_play.setEnabled(true);
-                        prev_button.setEnabled(false);
-                        next_button.setEnabled(false);
-                        return true;
-                case 1: repeat.setEnabled(!wasShuffled);
-                        cont_play.setEnabled(!wasShuffled);
-                        final int index = playingMP3s.values().iterator().next()
-                                .peek().shuffle_index;
-                        prev_button.setEnabled(!wasShuffled && index > 0);
-                        next_button.setEnabled(!wasShuffled &&
-                                index < usedIndices.size() - 1);
-            }
-            return true;
+    /* Starts making a shuffle in the background, replacing any being made.
+     * The same inputs and seed always give the same shuffle. */
+    final private void shuffleSongs(String playlistFilename, String startG,
+                                    String markovFilename, int num_songs,
+                                    long seed, boolean endless) {
+        if (shuffler != null) {
+            shuffler.cancel(false);
         }
-        return false;
-    }
-
-    /* Stops all songs, and adjusts GUI. Runtime: O(n). */
-    final public synchronized void closeSongs() {
-        for (Map.Entry<String, Queue<MP3>> entry : playingMP3s.entrySet()) {
-            for (final MP3 song : entry.getValue()) {
-                song.close();
-            }
+        if (watcher != null) {
+            watcher.watch(playlistFilename);
         }
-        playingMP3s = new HashMap<String, Queue<MP3>>();
-        multimap_size = 0;
-        wasShuffled = false;
-
-        repeat.setEnabled(true);
-        cont_play.setEnabled(true);
-        prev_button.setEnabled(false);
-        next_button.setEnabled(false);
+        shuffler = new ShuffleWorker(playlistFilename, startG,
+                                     markovFilename, num_songs, seed, endless);
+        shuffler.addPropertyChangeListener(new PropertyChangeListener() {
+            final public void propertyChange(PropertyChangeEvent e) {
+                if ("progress".equals(e.getPropertyName())) {
+                    shuffleProgress.setIndeterminate(false);
+                    shuffleProgress.setValue((Integer) e.getNewValue());
+                }
+            }
+        });
+        shuffleProgress.setValue(0);
+        shuffleProgress.setIndeterminate(true);
+        shuffleProgress.setVisible(true);
+        cancelButton.setEnabled(true);
+        shuffler.execute();
     }
 
-    /* Reads exported playlist file. */
-    final public boolean readPlaylist(String playlist) {
-        if (!ogPlaylist.isEmpty()) {
-            songPaths = new ArrayList<String>();
-            ogPlaylist = new ArrayList<String>();
-            usedIndices = new ArrayList<Integer>();
-            genres = new LinkedHashMap<String, Integer>();  // Assuming playlist is sorted by genre
+    /**
+     * Reads the exported playlist, applies the Markov chain, and shows the
+     * songs in the GUI as they are picked. File I/O and picking happen off
+     * the EDT; errors are shown once it is done. A cancelled shuffle keeps
+     * the songs already shown. The seed is shown in the title, and gives
+     * the same shuffle as BatchShuffler with that seed. Songs are shown
+     * from the first pick, so playing can start right away. An endless
+     * shuffle may be longer than the playlist, and once made keeps growing
+     * as it is played, from the same walk.
+     */
+    final private class ShuffleWorker extends SwingWorker<int[], Integer> {
+        private final String playlistFilename;
+        private final String startG;
+        private final String markovFilename;
+        private final int num_songs;
+        private final long seed;
+        private final boolean endless;
+        private volatile TrackCatalog newCatalog;
+        private volatile ShuffleEngine.Walk newWalk;
+        private volatile int[] picks;
+        private volatile int picked;                // Picks reported so far
+        private ShuffleListModel listModel;         // EDT only, null until shown
+        private boolean finished;                   // EDT only
+
+        ShuffleWorker(String playlistFilename, String startG,
+                      String markovFilename, int num_songs, long seed,
+                      boolean endless) {
+            this.playlistFilename = playlistFilename;
+            this.startG = startG;
+            this.markovFilename = markovFilename;
+            this.num_songs = num_songs;
+            this.seed = seed;
+            this.endless = endless;
         }
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                                    new FileInputStream(playlist), "UTF-16"))) {
-            String line = br.readLine();
-            if (line == null) {
-                String message = "The given file is empty. " +
-                                 "Please enter a different file.";
-                JOptionPane.showMessageDialog(this, message,
-                                              "Empty File",
-                                              JOptionPane.ERROR_MESSAGE);
-                return false;
-            }
-
-            // Ensure the categories are correct
-            String[] lineSplits = line.split("\\t");
-            if (!lineSplits[0].equals("Name") ||
-                    !lineSplits[1].equals("Artist") ||
-                    !lineSplits[5].equals("Genre") ||
-                    !lineSplits[26].equals("Location")) {
-                String message = "Did you properly save/select the playlist? " +
-                                 "Try again. Maybe iTunes has updated.";
-                JOptionPane.showMessageDialog(this, message,
-                                              "Bad File Format",
-                                              JOptionPane.ERROR_MESSAGE);
-                return false;
-            }
 
-            for (int i = 1; (line = br.readLine()) != null; ++i) {
-                lineSplits = line.split("\\t");
-                lineSplits[1] = lineSplits[1].trim();
-                lineSplits[5] = lineSplits[5].trim();
-
-                ogPlaylist.add(lineSplits[0].trim() +  // Compiler opts ftw
-                               (lineSplits[1].equals("") ? "" : " by : ") +
-                               lineSplits[1] +         // Artist exists?
-                               "         " +
-                               lineSplits[5]);
-                genres.put(lineSplits[5].toUpperCase(), i);
-                songPaths.add(lineSplits[26]);
+        final protected int[] doInBackground() throws ShuffleException, IOException {
+            final ShuffleEngine engine = ShuffleEngine.load(playlistFilename,
+                                                             markovFilename);
+            engine.checkLength(num_songs, endless);
+            if (isCancelled()) {
+                return null;
             }
-        } catch (UnsupportedEncodingException e) {
-            String message = "Did you properly save/select the playlist? " +
-                             "Try again. Maybe iTunes has updated.";
-            JOptionPane.showMessageDialog(this, message,
-                                          "Bad File Format",
-                                          JOptionPane.ERROR_MESSAGE);
-            return false;
-        } catch (FileNotFoundException e) {
-            String message = "Chosen file does not exist.";
-            JOptionPane.showMessageDialog(this, message, "Invalid Path",
-                                          JOptionPane.ERROR_MESSAGE);
-            return false;
-        } catch (IOException e) {
-            // Not really sure what else to do, doesn't cause a crash
-            e.printStackTrace();
-            return false;
+            final Random rand = ShuffleEngine.random(seed);
+            final ShuffleEngine.Walk walk = engine.walk(engine.startGenre(startG, rand),
+                                                        rand, endless);
+
+            final int[] picks = new int[num_songs];
+            newCatalog = engine.catalog();
+            this.picks = picks;
+            engine.shuffle(picks, walk, new ShuffleEngine.Progress() {
+                final public boolean picked(int count) {
+                    ShuffleWorker.this.picked = count;
+                    publish(count);
+                    setProgress((int) (count * 100L / num_songs));
+                    return !isCancelled();
+                }
+            });
+            newWalk = walk;
+            return picks;
         }
-        return true;
-    }
 
-    /* Reads exported playlist, applies Markov Chain, and displays in GUI. */
-    final public void shuffleSongs(String playlistFilename, String startG,
-                                       String markovFilename, int num_songs) {
-        if (!readPlaylist(playlistFilename)) {
-            return ;
-        }
-        if ((num_songs > ogPlaylist.size()) || num_songs <= 0) {
-            String message = "Invalid number! Must be equal or less than " +
-                             "the number of songs in your playlist, and " +
-                             "greater than 0. May also be a file format " +
-                             "problem, try re-exporting playlist if " +
-                             "confident that the number is correct.";
-            JOptionPane.showMessageDialog(this, message,
-                                          "Invalid Number of Songs",
-                                          JOptionPane.ERROR_MESSAGE);
-            return ;
+        final protected void process(List<Integer> chunks) {
+            showPicks(chunks.get(chunks.size() - 1));
         }
 
-        final Random rand = new Random();
-        final double markov[][] = new double[genres.size()][genres.size()];
-        if (markovFilename.equals("")) {
-            /* Creates even Markov chain. The random variable
-             * below will be the random factor in this shuffle. */
-            double evenDistribution = 1.0 / markov.length;
-            for (int row = 0; row < markov.length; ++row) {
-                for (int col = 0; col < markov.length; ++col) {
-                    markov[row][col] = evenDistribution;
+        final protected void done() {
+            try {
+                get();
+            } catch (CancellationException e) {
+                // Keep what has been shown
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ShuffleException) {
+                    final ShuffleException error = (ShuffleException) e.getCause();
+                    JOptionPane.showMessageDialog(PlaylistGUI.this, error.getMessage(),
+                                                  error.getTitle(),
+                                                  JOptionPane.ERROR_MESSAGE);
+                } else {
+                    // Not really sure what else to do, doesn't cause a crash
+                    e.getCause().printStackTrace();
                 }
             }
-        } else {
-            // Process Markov chain input file
-            try (BufferedReader br =
-                    new BufferedReader(new FileReader(markovFilename))) {
-                for (int i = 0; i < markov.length; ++i) {
-                    double total_prob = 0.0;
-                    final String[] chainProbs = br.readLine().split("\\s");
-                    for (int j = 0, k = 0; j < markov.length; ++k) {
-                        if (!chainProbs[k].equals("")) {
-                            final double prob = Double.parseDouble(chainProbs[k]);
-                            markov[i][j++] = prob;
-                            total_prob += prob;
-                        }
-                    }
-                    // Catches floating-point addition errors
-                    if ((total_prob < 0.99999) || (total_prob > 1.0)) {
-                        String message = "All probabilities do not sum to 1.";
-                        JOptionPane.showMessageDialog(this, message,
-                                                      "Bad File Format",
-                                                      JOptionPane.ERROR_MESSAGE);
-                        return ;
-                    }
+            showPicks(picked);
+            finished = true;
+            if (shuffler == this) {
+                shuffler = null;
+                shuffleProgress.setVisible(false);
+                cancelButton.setEnabled(false);
+                if (endless && listModel != null && newWalk != null) {
+                    walk = newWalk;
+                    extendShuffle(myShuffle.getSelectedIndex());
                 }
-            } catch (NumberFormatException e) {
-                String message = "Markov chain file must be " +
-                                 "expressed in double.";
-                JOptionPane.showMessageDialog(this, message, "Bad File Format",
-                                              JOptionPane.ERROR_MESSAGE);
-                return ;
-            } catch (NullPointerException | ArrayIndexOutOfBoundsException e) {
-                String message = "Not enough rows/columns in your Markov " +
-                                 "chain (should be equal).";
-                JOptionPane.showMessageDialog(this, message, "Bad File Format",
-                                              JOptionPane.ERROR_MESSAGE);
-               return ;
-            } catch (FileNotFoundException e) {
-                String message = "Chosen file does not exist.";
-                JOptionPane.showMessageDialog(this, message, "Invalid Path",
-                                              JOptionPane.ERROR_MESSAGE);
-                return ;
-            } catch (IOException e) {
-                // Not really sure what else to do, doesn't cause a crash
-                e.printStackTrace();
-                return ;
             }
         }
 
-        int index;
-        final Iterator<String> genreItr = genres.keySet().iterator();
-        if (startG.equals("")) {
-            // Randomly select a genre, if one wasn't given
-            index = rand.nextInt(markov.length);
-            for (int i = 0; i < index; ++i, genreItr.next());
-            startG = genreItr.next();
-        } else if (!genres.containsKey(startG)) {
-            String message = "Genre not found in playlist, please " +
-                             "enter a genre in your playlist.";
-            JOptionPane.showMessageDialog(this, message,
-                                          "Invalid Genre",
-                                          JOptionPane.ERROR_MESSAGE);
-            return ;
-        } else {
-            // Find the index of user inputted genre
-            for (index = 0; !startG.equals(genreItr.next()); ++index);
-        }
-
-        final Integer[] end = genres.values().toArray(new Integer[markov.length]);
-
-        // Create array of arrays for each genre's range of indices
-        final int[][] unusedIndices = new int[end.length][];
-        final int[] lengths = new int[end.length];
-        for (int i = 0, start = 0; i < end.length; ++i) {
-            final int length = end[i] - start;
-            lengths[i] = length;
-            unusedIndices[i] = new int[length];
-            for (int j = 0; start < end[i]; ++j) {
-                unusedIndices[i][j] = start++;
+        /* Shows the first count picks, replacing the last shuffle on the
+         * first call. Runtime: O(1). */
+        final private void showPicks(int count) {
+            if (finished || count == 0 || shuffler != this) {
+                return ;        // Nothing new, or a newer shuffle replaced this one
             }
-        }
-
-        /* Creates shuffle. Runtime: O(q), where q is number of songs in shuffle. */
-        final DefaultListModel<String> listModel = new DefaultListModel<String>();
-        for (int q = 0, emptyGenres = 0; q < num_songs; ++q) {
-            int i = -1;
-
-            // "Pick" genre based on probabilities and random number.
-            final double randDouble = rand.nextDouble();
-            for (double acc = 0.0; randDouble >= acc; acc += markov[index][++i]);
-
-            /* Pick random element in array to prevent the same
-             * shuffle order of songs for each genre. */
-            final int randIndex = rand.nextInt(lengths[i]);
-            final int length = --lengths[i];
-            final int playlistIndex = unusedIndices[i][randIndex];
-            unusedIndices[i][randIndex] = unusedIndices[i][length];
-
-            // "Pick" song from genre
-            usedIndices.add(playlistIndex);
-
-            // Map GUI index to songPath structure index
-            listModel.addElement(ogPlaylist.get(playlistIndex));
-            index = i;
-
-            // Distribute probability of genre with no songs left
-            if (length == 0) {
-                ++emptyGenres;
-                for (int j = 0; j < markov.length; ++j) {
-                    final double probSplit = markov[j][i] /
-                                                (markov.length - emptyGenres);
-                    for (int k = 0; k < markov.length; ++k) {
-                        if (k == i) {
-                            markov[j][k] = 0.0;
-                        } else if (markov[j][k] != 0.0) {
-                            markov[j][k] += probSplit;
-                        }
-                    }
-                }
+            if (listModel == null) {
+                listModel = new ShuffleListModel(newCatalog, picks);
+                catalog = newCatalog;
+                shuffle = picks;
+                shuffle_length = 0;
+                shuffleModel = listModel;
+                walk = null;
+                myShuffle.setModel(listModel);
+                setTitle(TITLE + " (seed " + seed + ")");
+                playButton.setEnabled(true);
+                blendButton.setEnabled(true);
+                stopButton.setEnabled(true);
+                stopAllButton.setEnabled(true);
             }
+            listModel.showFirst(count);
+            shuffle_length = count;
         }
-        myShuffle.setModel(listModel);
     }
 
     public static void main(String[] args) {
+        Metrics.startExport();
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
                 new PlaylistGUI().setVisible(true);
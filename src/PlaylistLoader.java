@@ -0,0 +1,191 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Loads an exported iTunes playlist (UTF-16, tab-delimited) into a
+ * PlaylistParser.Sink, either through one BufferedReader or, for large
+ * exports, by memory-mapping the file, cutting it into chunks on line
+ * boundaries and parsing the chunks in parallel on a fork-join pool.
+ * Either way the sink sees exactly the same tracks in file order.
+ *
+ * The mode is picked with -Dshuffler.parse=sequential|parallel; by
+ * default files of PARALLEL_THRESHOLD bytes or more are parsed in parallel.
+ */
+final class PlaylistLoader {
+    enum Status { OK, EMPTY, BAD_HEADER }
+
+    static final String PROPERTY = "shuffler.parse";
+    static final long PARALLEL_THRESHOLD = 4L << 20;
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private PlaylistLoader() {}
+
+    static Status load(File playlist, PlaylistParser.Sink sink) throws IOException {
+        final String mode = System.getProperty(PROPERTY, "auto");
+        final long size = playlist.length();
+        final boolean parallel = mode.equalsIgnoreCase("parallel") ||
+                (!mode.equalsIgnoreCase("sequential") &&
+                 size >= PARALLEL_THRESHOLD &&
+                 Runtime.getRuntime().availableProcessors() > 1);
+        // A single mapping is limited to 2GB
+        if (parallel && size <= Integer.MAX_VALUE) {
+            return loadParallel(playlist, sink);
+        }
+        return loadSequential(playlist, sink);
+    }
+
+    /* Runtime: O(n), n being the file size. */
+    static Status loadSequential(File playlist, PlaylistParser.Sink sink)
+            throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(playlist), Charset.forName("UTF-16")))) {
+            final PlaylistParser parser = new PlaylistParser(br);
+            if (!parser.nextLine()) {
+                return Status.EMPTY;
+            }
+            // Ensure the categories are correct
+            if (!parser.isHeader()) {
+                return Status.BAD_HEADER;
+            }
+            parser.readTracks(sink);
+        }
+        return Status.OK;
+    }
+
+    /* Runtime: O(n / p), p being the number of cores, plus the O(t) merge. */
+    static Status loadParallel(File playlist, PlaylistParser.Sink sink)
+            throws IOException {
+        final MappedByteBuffer mapped;
+        try (RandomAccessFile file = new RandomAccessFile(playlist, "r");
+             FileChannel channel = file.getChannel()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        // Same byte order rules as the "UTF-16" decoder: BOM, else big-endian
+        final int limit = mapped.limit() & ~1;
+        int start = 0;
+        boolean little = false;
+        if (limit >= 2) {
+            final int b0 = mapped.get(0) & 0xFF, b1 = mapped.get(1) & 0xFF;
+            if (b0 == 0xFE && b1 == 0xFF) {
+                start = 2;
+            } else if (b0 == 0xFF && b1 == 0xFE) {
+                start = 2;
+                little = true;
+            }
+        }
+        final Charset charset = Charset.forName(little ? "UTF-16LE" : "UTF-16BE");
+
+        final int headerEnd = lineEnd(mapped, start, limit, little);
+        if (headerEnd == start && headerEnd == limit) {
+            return Status.EMPTY;
+        }
+        final PlaylistParser header = chunkParser(mapped, start, headerEnd, charset);
+        if (!header.nextLine() || !header.isHeader()) {
+            return Status.BAD_HEADER;
+        }
+
+        // Cut the rest into chunks that each end just after a line terminator
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        for (int from = headerEnd; from < limit; ) {
+            final int to = from + CHUNK_BYTES >= limit ? limit
+                    : lineEnd(mapped, from + CHUNK_BYTES, limit, little);
+            chunks.add(new Chunk(mapped, from, to, charset));
+            from = to;
+        }
+        for (final Chunk chunk : chunks) {
+            POOL.execute(chunk);
+        }
+        // Merge in file order while later chunks are still being parsed
+        for (final Chunk chunk : chunks) {
+            chunk.join();
+            chunk.replay(sink);
+        }
+        return Status.OK;
+    }
+
+    /* Returns the offset just past the first line terminator at or after from. */
+    private static int lineEnd(ByteBuffer buf, int from, int limit, boolean little) {
+        for (int i = from; i + 1 < limit; i += 2) {
+            final char c = little
+                    ? (char) ((buf.get(i) & 0xFF) | (buf.get(i + 1) << 8))
+                    : (char) ((buf.get(i) << 8) | (buf.get(i + 1) & 0xFF));
+            if (c == '\n') {
+                return i + 2;
+            }
+            if (c == '\r') {
+                final int next = i + 2;
+                if (next + 1 < limit &&
+                        buf.get(little ? next : next + 1) == '\n' &&
+                        buf.get(little ? next + 1 : next) == 0) {
+                    return next + 2;
+                }
+                return next;
+            }
+        }
+        return limit;
+    }
+
+    private static PlaylistParser chunkParser(ByteBuffer mapped, int from, int to,
+                                              Charset charset) {
+        final ByteBuffer bytes = mapped.duplicate();
+        bytes.limit(to).position(from);
+        final CharBuffer chars = charset.decode(bytes);
+        return new PlaylistParser(chars.array(), chars.limit());
+    }
+
+    /* Tracks of one chunk, kept in order until every chunk is parsed. */
+    @SuppressWarnings("serial")
+    private static final class Chunk extends RecursiveAction
+            implements PlaylistParser.Sink {
+        private final ByteBuffer mapped;
+        private final int from, to;
+        private final Charset charset;
+        private final List<String> tracks = new ArrayList<String>();
+
+        Chunk(ByteBuffer mapped, int from, int to, Charset charset) {
+            this.mapped = mapped;
+            this.from = from;
+            this.to = to;
+            this.charset = charset;
+        }
+
+        protected void compute() {
+            try {
+                chunkParser(mapped, from, to, charset).readTracks(this);
+            } catch (IOException e) {
+                // Decoded text has no underlying reader to fail
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void track(String name, String artist, String genre, String location) {
+            tracks.add(name);
+            tracks.add(artist);
+            tracks.add(genre);
+            tracks.add(location);
+        }
+
+        void replay(PlaylistParser.Sink sink) {
+            for (int i = 0; i < tracks.size(); i += 4) {
+                sink.track(tracks.get(i), tracks.get(i + 1),
+                           tracks.get(i + 2), tracks.get(i + 3));
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.io.Reader;
+
+
+/**
+ * Tab-delimited tokenizer for exported iTunes playlists. Lines are read
+ * into one reusable char buffer and only the column boundaries are
+ * recorded, so a String is created only for the columns asked for.
+ *
+ * Usage:
+ *   while (parser.nextLine()) {
+ *       String genre = parser.field(PlaylistParser.GENRE);
+ *   }
+ */
+final class PlaylistParser {
+    /* Receives the tracks of a playlist in file order. */
+    interface Sink {
+        void track(String name, String artist, String genre, String location);
+    }
+
+    /* Column indices of an iTunes export. */
+    static final int NAME = 0;
+    static final int ARTIST = 1;
+    static final int GENRE = 5;
+    static final int LOCATION = 26;
+    static final int COLUMNS = LOCATION + 1;
+
+    /* 64-bit FNV-1a, for hashing the columns a TrackCatalog keeps. */
+    static final long HASH_BASIS = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+
+    private final Reader in;
+    private char[] buf = new char[1 << 16];
+    private int pos;                    // Start of the unread input in buf
+    private int limit;                  // End of the valid input in buf
+    private boolean eof;
+    private boolean skipLF;             // Last line ended in '\r'
+    private final int[] starts = new int[COLUMNS + 1];
+    private int numCols;
+
+    PlaylistParser(Reader in) {
+        this.in = in;
+    }
+
+    /* Parses already decoded text; chars[0, length) is used as the buffer. */
+    PlaylistParser(char[] chars, int length) {
+        this.in = null;
+        this.buf = chars;
+        this.limit = length;
+        this.eof = true;
+    }
+
+    /* Passes every remaining track row to sink, skipping blank or truncated rows. */
+    final void readTracks(Sink sink) throws IOException {
+        while (nextLine()) {
+            if (numCols < COLUMNS) {
+                continue;
+            }
+            sink.track(field(NAME), field(ARTIST), field(GENRE), rawField(LOCATION));
+        }
+    }
+
+    /* Advances to the next line, returns false at end of input. */
+    final boolean nextLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            if (scan == limit) {
+                if (eof) {
+                    if (pos == limit) {
+                        return false;
+                    }
+                    split(pos, limit);  // Last line has no terminator
+                    pos = limit;
+                    return true;
+                }
+                scan -= pos;
+                fill();
+                scan += pos;
+                continue;
+            }
+
+            final char c = buf[scan];
+            if (skipLF && scan == pos && c == '\n') {
+                skipLF = false;
+                ++pos;
+                ++scan;
+                continue;
+            }
+            skipLF = false;
+            if (c == '\n' || c == '\r') {
+                split(pos, scan);
+                skipLF = (c == '\r');
+                pos = scan + 1;
+                return true;
+            }
+            ++scan;
+        }
+    }
+
+    /* Number of columns in the current line. */
+    final int numColumns() {
+        return numCols;
+    }
+
+    /* Returns the column, with surrounding whitespace trimmed, or "" if absent. */
+    final String field(int col) {
+        if (col >= numCols) {
+            return "";
+        }
+        int start = starts[col];
+        int end = starts[col + 1] - 1;
+        while (start < end && buf[start] <= ' ') ++start;
+        while (end > start && buf[end - 1] <= ' ') --end;
+        return new String(buf, start, end - start);
+    }
+
+    /* Returns the column untrimmed, or "" if absent. */
+    final String rawField(int col) {
+        if (col >= numCols) {
+            return "";
+        }
+        return new String(buf, starts[col], starts[col + 1] - 1 - starts[col]);
+    }
+
+    /* True if the column holds exactly s, without creating a String. */
+    final boolean fieldEquals(int col, String s) {
+        if (col >= numCols) {
+            return false;
+        }
+        final int start = starts[col];
+        final int length = starts[col + 1] - 1 - start;
+        if (length != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (buf[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Hash of the current row's name, artist and genre, trimmed as by
+     * field(), and raw location: the same as TrackCatalog.trackHash() of
+     * the track the row becomes. No String is created. Runtime: O(length). */
+    final long trackHash() {
+        long h = HASH_BASIS;
+        h = hashColumn(h, NAME, true);
+        h = hashColumn(h, ARTIST, true);
+        h = hashColumn(h, GENRE, true);
+        return hashColumn(h, LOCATION, false);
+    }
+
+    private long hashColumn(long h, int col, boolean trim) {
+        if (col < numCols) {
+            int start = starts[col];
+            int end = starts[col + 1] - 1;
+            if (trim) {
+                while (start < end && buf[start] <= ' ') ++start;
+                while (end > start && buf[end - 1] <= ' ') --end;
+            }
+            for (int i = start; i < end; ++i) {
+                h = (h ^ buf[i]) * HASH_PRIME;
+            }
+        }
+        return endField(h);
+    }
+
+    /* Adds the chars of s to a hash. */
+    static long hashChars(long h, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            h = (h ^ s.charAt(i)) * HASH_PRIME;
+        }
+        return h;
+    }
+
+    /* Ends a column, so moving chars between columns changes the hash. */
+    static long endField(long h) {
+        return (h ^ '\t') * HASH_PRIME;
+    }
+
+    /* True if the current line is the header row of an iTunes export. */
+    final boolean isHeader() {
+        return fieldEquals(NAME, "Name") && fieldEquals(ARTIST, "Artist") &&
+               fieldEquals(GENRE, "Genre") && fieldEquals(LOCATION, "Location");
+    }
+
+    /* Records where each needed column starts; starts[col + 1] - 1 is its end. */
+    private void split(int from, int to) {
+        numCols = 0;
+        starts[0] = from;
+        for (int i = from; i < to && numCols < COLUMNS; ++i) {
+            if (buf[i] == '\t') {
+                starts[++numCols] = i + 1;
+            }
+        }
+        if (numCols < COLUMNS) {
+            starts[++numCols] = to + 1;
+        }
+    }
+
+    /* Moves the unread input to the front of buf and reads more after it. */
+    private void fill() throws IOException {
+        final int remaining = limit - pos;
+        if (remaining == buf.length) {
+            final char[] grown = new char[buf.length * 2];
+            System.arraycopy(buf, pos, grown, 0, remaining);
+            buf = grown;
+        } else {
+            System.arraycopy(buf, pos, buf, 0, remaining);
+        }
+        pos = 0;
+        limit = remaining;
+
+        final int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+}
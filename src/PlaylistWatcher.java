@@ -0,0 +1,136 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Watches the folder of the playlist last shuffled and re-imports the
+ * export once it has been rewritten, so a regenerated export is patched
+ * into the catalog cache (see PlaylistDiff) in the background and the
+ * next shuffle starts from it at once. An export is read only after it
+ * has gone SETTLE_MS without changing, since it is written over time.
+ * Shuffles already made keep the catalog they were drawn from.
+ *
+ * Turn it off with -Dshuffler.watch=false.
+ */
+final class PlaylistWatcher implements Runnable {
+    static final String PROPERTY = "shuffler.watch";
+    private static final long SETTLE_MS = 2000;
+
+    private final WatchService service;
+    private File playlist;                  // Guarded by this
+    private WatchKey key;                   // Guarded by this
+
+    private PlaylistWatcher(WatchService service) {
+        this.service = service;
+    }
+
+    /* Starts a watcher thread, or returns null if watching is off or the
+     * file system can't be watched. */
+    static PlaylistWatcher start() {
+        if (System.getProperty(PROPERTY, "true").equalsIgnoreCase("false")) {
+            return null;
+        }
+        try {
+            final PlaylistWatcher watcher =
+                    new PlaylistWatcher(FileSystems.getDefault().newWatchService());
+            final Thread thread = new Thread(watcher, "playlist-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            return watcher;
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /* Watches filename instead of the playlist watched so far. */
+    final synchronized void watch(String filename) {
+        final File file = new File(filename).getAbsoluteFile();
+        if (file.equals(playlist) || !file.isFile()) {
+            return ;
+        }
+        final File folder = file.getParentFile();
+        final boolean sameFolder = playlist != null &&
+                                   folder.equals(playlist.getParentFile());
+        playlist = file;
+        if (sameFolder) {
+            return ;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            key = folder.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                           StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | ClosedWatchServiceException e) {
+            key = null;
+            System.out.println("Cannot watch " + folder + ": " + e);
+        }
+    }
+
+    final void close() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            // Its thread stops either way
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                File changed = changed(service.take());
+                // Wait for the writes to stop before reading it
+                while (changed != null) {
+                    final WatchKey more = service.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                    if (more == null) {
+                        reimport(changed);
+                        break;
+                    }
+                    final File also = changed(more);
+                    if (also != null) {
+                        changed = also;
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed, stop watching
+        }
+    }
+
+    /* The watched playlist if key's events include it, else null. */
+    private synchronized File changed(WatchKey key) {
+        File changed = null;
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            final Object context = event.context();
+            if (key == this.key && playlist != null && context instanceof Path &&
+                    context.toString().equals(playlist.getName())) {
+                changed = playlist;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /* Patches or parses the export into the catalog cache. */
+    private static void reimport(File playlist) {
+        if (!playlist.isFile()) {
+            return ;
+        }
+        try {
+            ShuffleEngine.readPlaylist(playlist.getPath());
+        } catch (ShuffleException e) {
+            // Reported when it is shuffled
+        } catch (IOException e) {
+            System.out.println("Problem re-importing " + playlist);
+            System.out.println(e);
+        }
+    }
+}
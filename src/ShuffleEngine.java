@@ -0,0 +1,393 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Makes shuffles of one playlist with one Markov chain, without any UI.
+ * The catalog and chain are only read, so one engine can make any number
+ * of shuffles, from any number of threads: each shuffle gets a copy of an
+ * unused sampler and of the song pools, and the rest of its state lives
+ * in the call making it. Problems with the input are reported as
+ * ShuffleExceptions.
+ *
+ * A shuffle can also be drawn lazily, a song at a time, from a walk().
+ */
+final class ShuffleEngine {
+    /* Told how many songs have been picked, after the first pick, every
+     * PROGRESS_EVERY picks and at the end; returns false to stop the
+     * shuffle there. */
+    interface Progress {
+        boolean picked(int count);
+    }
+
+    /* Receives the shuffles of shuffleAll(), from several threads at once
+     * and in no particular order; picks is reused once it returns. */
+    interface Sink {
+        void shuffled(int k, int[] picks) throws IOException;
+    }
+
+    static final int PROGRESS_EVERY = 256;
+
+    private final TrackCatalog catalog;
+    private final MarkovChain chain;
+    private final GenreSampler sampler;     // Never used, only copied
+    private final int[] allSongs;           // 0 .. n - 1
+    private final int[] genreLengths;
+
+    ShuffleEngine(TrackCatalog catalog, MarkovChain chain) {
+        this.catalog = catalog;
+        this.chain = chain;
+        sampler = GenreSampler.create(chain);
+        allSongs = new int[catalog.size()];
+        for (int t = 0; t < allSongs.length; ++t) {
+            allSongs[t] = t;
+        }
+        genreLengths = new int[chain.size()];
+        for (int g = 0; g < genreLengths.length; ++g) {
+            genreLengths[g] = catalog.genreEnd(g) - catalog.genreStart(g);
+        }
+    }
+
+    /* Random numbers for the shuffle with this seed: the first split of a
+     * SplittableRandom, as used by shuffleAll() for its first shuffle. */
+    static Random random(long seed) {
+        return new SplitRandom(new SplittableRandom(seed).split());
+    }
+
+    /* Engine for a playlist, with an even Markov chain if markovFilename
+     * is empty. */
+    static ShuffleEngine load(String playlistFilename, String markovFilename)
+            throws ShuffleException, IOException {
+        return load(readPlaylist(playlistFilename), markovFilename);
+    }
+
+    static ShuffleEngine load(TrackCatalog catalog, String markovFilename)
+            throws ShuffleException, IOException {
+        if (markovFilename.equals("")) {
+            // Creates even Markov chain, the shuffle's Random is the only factor
+            return new ShuffleEngine(catalog, MarkovChain.uniform(catalog.numGenres()));
+        }
+        // Process Markov chain input file
+        try {
+            final long start = System.nanoTime();
+            final Object event = Metrics.begin(Metrics.MARKOV);
+            final MarkovChain chain = MarkovChain.load(markovFilename, catalog);
+            Metrics.markovLoaded(start, event, chain.size(), markovFilename);
+            return new ShuffleEngine(catalog, chain);
+        } catch (MarkovChain.FormatException e) {
+            throw new ShuffleException("Bad File Format", e.getMessage());
+        } catch (FileNotFoundException e) {
+            throw new ShuffleException("Invalid Path", "Chosen file does not exist.");
+        }
+    }
+
+    /* Reads exported playlist file, or its cached snapshot, or patches the
+     * catalog it was last loaded into if only a few rows changed.
+     * Runtime: O(n), n being the file size. */
+    static TrackCatalog readPlaylist(String playlist)
+            throws ShuffleException, IOException {
+        final File file = new File(playlist);
+        final TrackCatalog cached = CatalogCache.load(file);
+        if (cached != null) {
+            return cached;
+        }
+        final TrackCatalog previous = CatalogCache.previous(file);
+        if (previous != null) {
+            final TrackCatalog patched = PlaylistDiff.patch(file, previous);
+            if (patched != null) {
+                CatalogCache.save(file, patched);
+                return patched;
+            }
+        }
+
+        final long start = System.nanoTime();
+        final Object event = Metrics.begin(Metrics.PARSE);
+        final TrackCatalog.Builder builder = new TrackCatalog.Builder();
+        try {
+            final PlaylistLoader.Status status = PlaylistLoader.load(file, builder);
+            if (status == PlaylistLoader.Status.EMPTY) {
+                throw new ShuffleException("Empty File",
+                                           "The given file is empty. " +
+                                           "Please enter a different file.");
+            } else if (status == PlaylistLoader.Status.BAD_HEADER) {
+                throw new ShuffleException("Bad File Format",
+                                           "Did you properly save/select the playlist? " +
+                                           "Try again. Maybe iTunes has updated.");
+            }
+        } catch (FileNotFoundException e) {
+            throw new ShuffleException("Invalid Path", "Chosen file does not exist.");
+        }
+        final TrackCatalog catalog = builder.build();
+        Metrics.parsed(start, event, catalog.size(), playlist);
+        CatalogCache.save(file, catalog);
+        return catalog;
+    }
+
+    final TrackCatalog catalog() {
+        return catalog;
+    }
+
+    final MarkovChain chain() {
+        return chain;
+    }
+
+    final void checkLength(int num_songs) throws ShuffleException {
+        checkLength(num_songs, false);
+    }
+
+    /* An endless shuffle may be longer than the playlist. */
+    final void checkLength(int num_songs, boolean endless) throws ShuffleException {
+        if (endless && num_songs <= 0) {
+            throw new ShuffleException("Invalid Number of Songs",
+                    "Invalid number! Must be greater than 0.");
+        }
+        if (!endless && ((num_songs > catalog.size()) || num_songs <= 0)) {
+            throw new ShuffleException("Invalid Number of Songs",
+                    "Invalid number! Must be equal or less than " +
+                    "the number of songs in your playlist, and " +
+                    "greater than 0. May also be a file format " +
+                    "problem, try re-exporting playlist if " +
+                    "confident that the number is correct.");
+        }
+    }
+
+    /* Markov row of an upper-case genre, or a random one if it's empty. */
+    final int startGenre(String startG, Random rand) throws ShuffleException {
+        if (startG.equals("")) {
+            // Randomly select a genre, if one wasn't given
+            return rand.nextInt(chain.size());
+        }
+        final int index = catalog.genreIndex(startG);
+        if (index == -1) {
+            throw new ShuffleException("Invalid Genre",
+                                       "Genre not found in playlist, please " +
+                                       "enter a genre in your playlist.");
+        }
+        return index;
+    }
+
+    /* The shuffle starting in genre index, drawn one song at a time; an
+     * endless walk never runs out. Runtime: O(n) to start. */
+    final Walk walk(int index, Random rand, boolean endless) {
+        return new Walk(index, rand, endless);
+    }
+
+    /* Fills picks with catalog indices, starting in genre index, and
+     * returns how many were picked before progress stopped it.
+     * Runtime: O(n + q), n songs in the playlist and q in the shuffle. */
+    final int shuffle(int[] picks, int index, Random rand, Progress progress) {
+        return shuffle(picks, walk(index, rand, false), progress);
+    }
+
+    /* Fills picks from a walk, which must have that many left. Runtime: O(q). */
+    final int shuffle(int[] picks, Walk walk, Progress progress) {
+        final long start = System.nanoTime();
+        final Object event = Metrics.begin(Metrics.SHUFFLE);
+        for (int q = 0; q < picks.length; ++q) {
+            picks[q] = walk.nextInt();
+            if (progress != null && (q == 0 || (q + 1) % PROGRESS_EVERY == 0) &&
+                    !progress.picked(q + 1)) {
+                Metrics.shuffled(start, event, q + 1);
+                return q + 1;
+            }
+        }
+        Metrics.shuffled(start, event, picks.length);
+        if (progress != null) {
+            progress.picked(picks.length);
+        }
+        return picks.length;
+    }
+
+    /* Makes count shuffles of num_songs songs on threads threads and gives
+     * them to sink. Shuffle k draws from the k-th split of a
+     * SplittableRandom seeded with seed, so it is the same for a seed
+     * however many threads there are. count must be at least 1.
+     * Runtime: O(count * (n + q) / threads). */
+    final void shuffleAll(final int count, final int num_songs, final String startG,
+                          long seed, int threads, final Sink sink)
+            throws ShuffleException, IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("count " + count + " < 1");
+        }
+        checkLength(num_songs);
+        if (!startG.equals("")) {
+            startGenre(startG, null);
+        }
+
+        final SplittableRandom root = new SplittableRandom(seed);
+        final int[] claimed = new int[1];
+        final Callable<Void> worker = new Callable<Void>() {
+            public Void call() throws ShuffleException, IOException {
+                final int[] picks = new int[num_songs];
+                while (true) {
+                    final int k;
+                    final SplittableRandom stream;
+                    synchronized (root) {
+                        if (claimed[0] >= count) {
+                            return null;
+                        }
+                        k = claimed[0]++;
+                        stream = root.split();
+                    }
+                    final Random rand = new SplitRandom(stream);
+                    shuffle(picks, startGenre(startG, rand), rand, null);
+                    sink.shuffled(k, picks);
+                }
+            }
+        };
+
+        threads = Math.max(1, Math.min(threads, count));
+        final ExecutorService pool = pool(threads, "shuffle");
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int w = 0; w < threads; ++w) {
+                futures.add(pool.submit(worker));
+            }
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ShuffleException) {
+                throw (ShuffleException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /* A fixed pool of threads daemon threads, named name-1, name-2, ... */
+    static ExecutorService pool(int threads, final String name) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, name + "-" + number.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * The Markov walk of one shuffle, as catalog indices. It holds only the
+     * song pools and a sampler, so memory stays the same however many songs
+     * are drawn. A genre's songs each play once before any plays again;
+     * when the last one is drawn, the genre's probability is spread over
+     * the others, or in an endless walk the genre is dealt again from the
+     * start. A finite walk ends once every song is drawn. Not thread safe.
+     */
+    final class Walk implements PrimitiveIterator.OfInt {
+        /* The unused songs of genre g are kept in
+         * unused[genreStart(g), genreStart(g) + lengths[g]). */
+        private final int[] unused = allSongs.clone();
+        private final int[] lengths = genreLengths.clone();
+        private final GenreSampler sampler = ShuffleEngine.this.sampler.copy();
+        private final Random rand;
+        private final boolean endless;
+        private int index;
+        private int left = catalog.size();      // Songs left, if not endless
+
+        private Walk(int index, Random rand, boolean endless) {
+            this.index = index;
+            this.rand = rand;
+            this.endless = endless;
+        }
+
+        final public boolean hasNext() {
+            return endless || left > 0;
+        }
+
+        /* Runtime: O(d) with the scan sampler, O(1) with alias, plus
+         * O(G) when a genre runs out. */
+        final public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            // "Pick" genre based on probabilities and random number.
+            final int i = sampler.next(index, rand);
+
+            /* Pick random element in genre's range to prevent the
+             * same shuffle order of songs for each genre. */
+            final int start = catalog.genreStart(i);
+            final int randIndex = start + rand.nextInt(lengths[i]);
+            final int length = --lengths[i];
+            final int track = unused[randIndex];
+            unused[randIndex] = unused[start + length];
+            unused[start + length] = track;
+            index = i;
+            --left;
+
+            if (length == 0) {
+                if (endless) {
+                    // Used songs fill the rest of the range, deal them again
+                    lengths[i] = genreLengths[i];
+                } else {
+                    // Distribute probability of genre with no songs left
+                    final long began = System.nanoTime();
+                    final Object event = Metrics.begin(Metrics.EXHAUST);
+                    sampler.exhaust(i);
+                    Metrics.exhausted(began, event, i);
+                }
+            }
+            return track;
+        }
+    }
+
+    /**
+     * A Random drawing from a SplittableRandom, for the code that takes a
+     * Random. Nothing is shared between instances and there is no atomic
+     * seed update per number, so each thread can have its own at no cost.
+     */
+    @SuppressWarnings("serial")
+    private static final class SplitRandom extends Random {
+        private final SplittableRandom source;
+
+        SplitRandom(SplittableRandom source) {
+            super(0L);
+            this.source = source;
+        }
+
+        protected int next(int bits) {
+            return source.nextInt() >>> (32 - bits);
+        }
+
+        public int nextInt() {
+            return source.nextInt();
+        }
+
+        public int nextInt(int bound) {
+            return source.nextInt(bound);
+        }
+
+        public long nextLong() {
+            return source.nextLong();
+        }
+
+        public double nextDouble() {
+            return source.nextDouble();
+        }
+    }
+}
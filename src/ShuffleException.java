@@ -0,0 +1,17 @@
+/**
+ * A shuffle that could not be made. The message is user facing, and the
+ * title is a short summary for the dialog showing it.
+ */
+@SuppressWarnings("serial")
+final class ShuffleException extends Exception {
+    private final String title;
+
+    ShuffleException(String title, String message) {
+        super(message);
+        this.title = title;
+    }
+
+    final String getTitle() {
+        return title;
+    }
+}
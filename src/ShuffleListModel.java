@@ -0,0 +1,44 @@
+import javax.swing.AbstractListModel;
+
+
+/**
+ * The shuffle as a JList model, straight from the catalog index of each
+ * entry: row text is only made when a row is painted, so a shuffle costs
+ * four bytes a song however long it is. Songs are added by growing the
+ * visible prefix of the array, one list event per batch; an endless
+ * shuffle swaps in a longer copy of the array first.
+ */
+@SuppressWarnings("serial")
+final class ShuffleListModel extends AbstractListModel<String> {
+    private final TrackCatalog catalog;
+    private int[] shuffle;
+    private int size;
+
+    ShuffleListModel(TrackCatalog catalog, int[] shuffle) {
+        this.catalog = catalog;
+        this.shuffle = shuffle;
+    }
+
+    final public int getSize() {
+        return size;
+    }
+
+    /* Runtime: O(1) plus the length of the row's text. */
+    final public String getElementAt(int index) {
+        return catalog.display(shuffle[index]);
+    }
+
+    /* Replaces the array with a longer one holding the same entries. */
+    final void grow(int[] longer) {
+        shuffle = longer;
+    }
+
+    /* Shows the first count entries of the shuffle. Runtime: O(1). */
+    final void showFirst(int count) {
+        if (count > size) {
+            final int old_size = size;
+            size = count;
+            fireIntervalAdded(this, old_size, count - 1);
+        }
+    }
+}
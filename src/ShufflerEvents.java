@@ -0,0 +1,188 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder events of the Metrics timings. Only loaded once Metrics
+ * has found Flight Recorder, so the shuffler still runs on a JVM without
+ * it. An event is begun before the work it times and ended after it, so
+ * its duration is JFR's own and a recording's threshold setting applies;
+ * it is committed only if a recording enables it:
+ *
+ *   java -XX:StartFlightRecording=filename=shuffler.jfr PlaylistGUI
+ *   jfr print --categories "Markov Music Shuffler" shuffler.jfr
+ *
+ * Events are passed around as Object, so no other class refers to jdk.jfr.
+ */
+final class ShufflerEvents {
+    private ShufflerEvents() {}
+
+    /* Begins the event of a Metrics timing or counter. */
+    static Object begin(String name) {
+        final Event event;
+        switch (name) {
+            case "playlist.parse":  event = new PlaylistParseEvent(); break;
+            case "playlist.patch":  event = new PlaylistPatchEvent(); break;
+            case "markov.load":     event = new MarkovLoadEvent(); break;
+            case "shuffle":         event = new ShuffleEvent(); break;
+            case "genre.exhaust":   event = new GenreExhaustEvent(); break;
+            case "playback.start":  event = new PlaybackStartEvent(); break;
+            case "audio.underruns": event = new BufferUnderrunEvent(); break;
+            default: throw new IllegalArgumentException(name);
+        }
+        event.begin();
+        return event;
+    }
+
+    static void playlistParsed(Object begun, int rows, String playlist) {
+        final PlaylistParseEvent event = (PlaylistParseEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.rows = rows;
+            event.playlist = playlist;
+            event.commit();
+        }
+    }
+
+    static void playlistPatched(Object begun, int changed, String playlist) {
+        final PlaylistPatchEvent event = (PlaylistPatchEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.changed = changed;
+            event.playlist = playlist;
+            event.commit();
+        }
+    }
+
+    static void markovLoaded(Object begun, int genres, String markov) {
+        final MarkovLoadEvent event = (MarkovLoadEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.genres = genres;
+            event.markov = markov;
+            event.commit();
+        }
+    }
+
+    static void shuffled(Object begun, int picks) {
+        final ShuffleEvent event = (ShuffleEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.picks = picks;
+            event.commit();
+        }
+    }
+
+    static void exhausted(Object begun, int genre) {
+        final GenreExhaustEvent event = (GenreExhaustEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.genre = genre;
+            event.commit();
+        }
+    }
+
+    static void playbackStarted(Object begun, String song) {
+        final PlaybackStartEvent event = (PlaybackStartEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.song = song;
+            event.commit();
+        }
+    }
+
+    static void underrunEnded(Object begun, int tracks) {
+        final BufferUnderrunEvent event = (BufferUnderrunEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.tracks = tracks;
+            event.commit();
+        }
+    }
+}
+
+
+@Name("shuffler.PlaylistParse")
+@Label("Playlist Parse")
+@Category("Markov Music Shuffler")
+@StackTrace(false)
+final class PlaylistParseEvent extends Event {
+    @Label("Rows")
+    int rows;
+
+    @Label("Playlist")
+    String playlist;
+}
+
+
+@Name("shuffler.PlaylistPatch")
+@Label("Playlist Patch")
+@Category("Markov Music Shuffler")
+@Description("A re-imported export applied to the saved playlist, see PlaylistDiff")
+@StackTrace(false)
+final class PlaylistPatchEvent extends Event {
+    @Label("Rows Changed")
+    int changed;
+
+    @Label("Playlist")
+    String playlist;
+}
+
+
+@Name("shuffler.MarkovLoad")
+@Label("Markov Chain Load")
+@Category("Markov Music Shuffler")
+@StackTrace(false)
+final class MarkovLoadEvent extends Event {
+    @Label("Genres")
+    int genres;
+
+    @Label("Markov Chain File")
+    String markov;
+}
+
+
+@Name("shuffler.Shuffle")
+@Label("Shuffle")
+@Category("Markov Music Shuffler")
+@StackTrace(false)
+final class ShuffleEvent extends Event {
+    @Label("Picks")
+    int picks;
+}
+
+
+@Name("shuffler.GenreExhaust")
+@Label("Genre Exhaust")
+@Category("Markov Music Shuffler")
+@Description("A genre's last song drawn and its probability spread over the others")
+@StackTrace(false)
+final class GenreExhaustEvent extends Event {
+    @Label("Genre")
+    int genre;
+}
+
+
+@Name("shuffler.PlaybackStart")
+@Label("Playback Start")
+@Category("Markov Music Shuffler")
+@Description("From Play to the first frame handed to the mixer")
+@StackTrace(false)
+final class PlaybackStartEvent extends Event {
+    @Label("Song")
+    String song;
+}
+
+
+@Name("shuffler.BufferUnderrun")
+@Label("Buffer Underrun")
+@Category("Markov Music Shuffler")
+@Description("A song's decoder behind the mixer, until it caught up")
+final class BufferUnderrunEvent extends Event {
+    @Label("Tracks Mixed")
+    int tracks;
+}
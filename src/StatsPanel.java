@@ -0,0 +1,49 @@
+import java.awt.BorderLayout;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+
+
+/**
+ * The Metrics snapshot as text, refreshed every second while the panel is
+ * showing. Reading the metrics doesn't stop anything being recorded.
+ */
+@SuppressWarnings("serial")
+final class StatsPanel extends JPanel {
+    private static final int REFRESH_MS = 1000;
+
+    private final JTextArea text = new JTextArea(14, 100);
+    private final Timer refresh;
+
+    StatsPanel() {
+        super(new BorderLayout());
+        text.setEditable(false);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        add(new JScrollPane(text), BorderLayout.CENTER);
+        refresh = new Timer(REFRESH_MS, new ActionListener() {
+            final public void actionPerformed(ActionEvent e) {
+                showStats();
+            }
+        });
+    }
+
+    final void showStats() {
+        text.setText(Metrics.text());
+    }
+
+    public void addNotify() {
+        super.addNotify();
+        showStats();
+        refresh.start();
+    }
+
+    public void removeNotify() {
+        refresh.stop();
+        super.removeNotify();
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The bytes of recently played MP3 files, copied onto the heap with their
+ * frame index, so Repeat, Previous/Next and blending a song again start
+ * without touching the disk. A file not cached is played from its mapping
+ * while a background thread copies it in, so the first play doesn't wait
+ * for the whole file. Files are kept compressed, about a tenth the size of
+ * their decoded PCM, and decoding them again costs far less than playing
+ * them. Entries are checked against the file's size and modification
+ * time, and the least recently played are dropped to keep the heap bytes
+ * held under a budget; a file over a quarter of the budget isn't cached.
+ *
+ * Set the budget in megabytes with -Dshuffler.trackcache=MB (default 128,
+ * 0 turns the cache off).
+ */
+final class TrackCache {
+    static final String PROPERTY = "shuffler.trackcache";
+    static final long DEFAULT_MB = 128;
+
+    // Access ordered, so iteration starts at the least recently played
+    private static final Map<String, MappedTrack> entries =
+            new LinkedHashMap<String, MappedTrack>(64, 0.75f, true);
+    private static final Set<String> copying = new HashSet<String>();
+    private static final ExecutorService copier = ShuffleEngine.pool(1, "track-cache");
+    private static long cached;             // Bytes in entries
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private TrackCache() {}
+
+    static long budget() {
+        try {
+            return Math.max(0, Long.parseLong(System.getProperty(PROPERTY,
+                                    Long.toString(DEFAULT_MB)))) << 20;
+        } catch (NumberFormatException e) {
+            return DEFAULT_MB << 20;
+        }
+    }
+
+    /* The cached copy of the file if it hasn't changed, else the file
+     * mapped, queued to be copied into the cache. Runtime: O(1). */
+    static MappedTrack open(final String filename) throws IOException {
+        final File file = new File(filename);
+        final long budget = budget();
+        final long size = file.length();
+        final long modified = file.lastModified();
+        synchronized (TrackCache.class) {
+            final MappedTrack entry = entries.get(filename);
+            if (entry != null && entry.size() == size && entry.modified == modified) {
+                hits.incrementAndGet();
+                return entry;
+            }
+        }
+        misses.incrementAndGet();
+        final MappedTrack track = MappedTrack.map(file);
+        if (size > 0 && size <= budget / 4 && startCopy(filename)) {
+            copier.execute(new Runnable() {
+                public void run() {
+                    try {
+                        put(filename, track.copy(), budget);
+                    } finally {
+                        endCopy(filename);
+                    }
+                }
+            });
+        }
+        return track;
+    }
+
+    private static synchronized boolean startCopy(String filename) {
+        return copying.add(filename);
+    }
+
+    private static synchronized void endCopy(String filename) {
+        copying.remove(filename);
+    }
+
+    /* Adds an entry, dropping the least recently played to fit. */
+    private static synchronized void put(String filename, MappedTrack track, long budget) {
+        final MappedTrack old = entries.put(filename, track);
+        cached += track.size() - (old == null ? 0 : old.size());
+        final Iterator<MappedTrack> eldest = entries.values().iterator();
+        while (cached > budget && eldest.hasNext()) {
+            final MappedTrack evicted = eldest.next();
+            if (evicted != track) {
+                cached -= evicted.size();
+                eldest.remove();
+            }
+        }
+    }
+
+    static synchronized void clear() {
+        entries.clear();
+        cached = 0;
+    }
+
+    static long hits() {
+        return hits.get();
+    }
+
+    static long misses() {
+        return misses.get();
+    }
+
+    static synchronized long cachedBytes() {
+        return cached;
+    }
+
+    static synchronized int cachedFiles() {
+        return entries.size();
+    }
+}
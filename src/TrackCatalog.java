@@ -0,0 +1,492 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Every track of a parsed playlist, stored by column. Artists, genre
+ * spellings and the directory part of each location are dictionary
+ * encoded, so per track only the name, the file name and three ints are
+ * kept. Tracks of genre g occupy the index range [genreStart(g), genreEnd(g)).
+ */
+final class TrackCatalog {
+    private final String[] names;
+    private final String[] fileNames;   // Location minus its directory
+    private final int[] dirIds;         // Index into dirs
+    private final int[] artistIds;      // Index into artists
+    private final int[] labelIds;       // Index into labels
+    private final String[] dirs;
+    private final String[] artists;
+    private final String[] labels;      // Genre as spelled in the playlist
+    private final String[] genreKeys;   // Upper-case genre, one per Markov row
+    private final int[] genreEnds;
+    private final Map<String, Integer> genreIndices;
+
+    private TrackCatalog(String[] names, String[] fileNames, int[] dirIds,
+                         int[] artistIds, int[] labelIds, String[] dirs,
+                         String[] artists, String[] labels,
+                         String[] genreKeys, int[] genreEnds) {
+        this.names = names;
+        this.fileNames = fileNames;
+        this.dirIds = dirIds;
+        this.artistIds = artistIds;
+        this.labelIds = labelIds;
+        this.dirs = dirs;
+        this.artists = artists;
+        this.labels = labels;
+        this.genreKeys = genreKeys;
+        this.genreEnds = genreEnds;
+        genreIndices = new HashMap<String, Integer>();
+        for (int g = 0; g < genreKeys.length; ++g) {
+            genreIndices.put(genreKeys[g], g);
+        }
+    }
+
+    final int size() {
+        return names.length;
+    }
+
+    final int numGenres() {
+        return genreKeys.length;
+    }
+
+    final String genreKey(int genre) {
+        return genreKeys[genre];
+    }
+
+    /* Returns the Markov row of an upper-case genre, or -1 if absent. */
+    final int genreIndex(String key) {
+        final Integer genre = genreIndices.get(key);
+        return genre == null ? -1 : genre;
+    }
+
+    final int genreStart(int genre) {
+        return genre == 0 ? 0 : genreEnds[genre - 1];
+    }
+
+    final int genreEnd(int genre) {
+        return genreEnds[genre];
+    }
+
+    /* Genre (Markov row) of a track. Runtime: O(log G). */
+    final int genreOf(int track) {
+        final int i = Arrays.binarySearch(genreEnds, track);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    final String location(int track) {
+        return dirs[dirIds[track]] + fileNames[track];
+    }
+
+    final String name(int track) {
+        return names[track];
+    }
+
+    final String artist(int track) {
+        return artists[artistIds[track]];
+    }
+
+    /* Genre of a track as spelled in the playlist. */
+    final String label(int track) {
+        return labels[labelIds[track]];
+    }
+
+    /* Text shown in the shuffle for a track, built only when it is displayed. */
+    final String display(int track) {
+        final String artist = artists[artistIds[track]];
+        return names[track] +
+               (artist.equals("") ? "" : " by : ") +    // Artist exists?
+               artist +
+               "         " +
+               labels[labelIds[track]];
+    }
+
+    /* Hash of the track's columns, equal to PlaylistParser.trackHash() of
+     * the row it was parsed from. Runtime: O(length). */
+    final long trackHash(int track) {
+        long h = PlaylistParser.HASH_BASIS;
+        h = PlaylistParser.endField(PlaylistParser.hashChars(h, names[track]));
+        h = PlaylistParser.endField(PlaylistParser.hashChars(h, artists[artistIds[track]]));
+        h = PlaylistParser.endField(PlaylistParser.hashChars(h, labels[labelIds[track]]));
+        h = PlaylistParser.hashChars(h, dirs[dirIds[track]]);
+        return PlaylistParser.endField(PlaylistParser.hashChars(h, fileNames[track]));
+    }
+
+    /* Length of the directory part of a location, Mac or Windows. */
+    static int dirLength(String location) {
+        return Math.max(location.lastIndexOf('/'), location.lastIndexOf('\\')) + 1;
+    }
+
+    /**
+     * The catalog of an export whose row i is old track order[i], or added
+     * row r (name, artist, genre, location) if order[i] is -1 - r. Tracks
+     * in no row are dropped. As in a parse, genres are in alphabetical
+     * order and tracks in file order within them, so rows are renumbered.
+     * Returns this if the rows are its tracks in its order. Dictionary
+     * entries no longer used are kept until the next full parse.
+     * Runtime: O(n) array copying plus O(a + G log G), a being the added rows.
+     */
+    final TrackCatalog patch(int[] order, int numRows, List<String[]> added) {
+        // Genre of each old track
+        final int[] oldGenres = new int[names.length];
+        for (int g = 0; g < genreKeys.length; ++g) {
+            Arrays.fill(oldGenres, genreStart(g), genreEnds[g], g);
+        }
+        if (added.isEmpty() && numRows == names.length) {
+            final int[] next = new int[genreKeys.length];
+            for (int g = 1; g < next.length; ++g) {
+                next[g] = genreEnds[g - 1];
+            }
+            int i = 0;
+            while (i < numRows && order[i] == next[oldGenres[order[i]]]++) {
+                ++i;
+            }
+            if (i == numRows) {
+                return this;
+            }
+        }
+
+        // Dictionaries, extended by the added rows' values
+        final Map<String, Integer> dirIndex = index(dirs);
+        final Map<String, Integer> artistIndex = index(artists);
+        final Map<String, Integer> labelIndex = index(labels);
+        final int a = added.size();
+        final String[] addedFileNames = new String[a];
+        final int[] addedDirs = new int[a];
+        final int[] addedArtists = new int[a];
+        final int[] addedLabels = new int[a];
+        final String[] addedKeys = new String[a];
+        for (int r = 0; r < a; ++r) {
+            final String[] row = added.get(r);
+            final int slash = dirLength(row[3]);
+            addedFileNames[r] = row[3].substring(slash);
+            addedDirs[r] = Builder.id(dirIndex, row[3].substring(0, slash));
+            addedArtists[r] = Builder.id(artistIndex, row[1]);
+            addedLabels[r] = Builder.id(labelIndex, row[2]);
+            addedKeys[r] = row[2].toUpperCase();
+        }
+
+        // Tracks per genre key, then the keys left in alphabetical order
+        final int[] oldCounts = new int[genreKeys.length];
+        for (int i = 0; i < numRows; ++i) {
+            if (order[i] >= 0) {
+                ++oldCounts[oldGenres[order[i]]];
+            }
+        }
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int g = 0; g < genreKeys.length; ++g) {
+            if (oldCounts[g] > 0) {
+                counts.put(genreKeys[g], oldCounts[g]);
+            }
+        }
+        for (final String key : addedKeys) {
+            final Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+        }
+        final String[] keys = counts.keySet().toArray(new String[counts.size()]);
+        Arrays.sort(keys);
+        final Map<String, Integer> rank = new HashMap<String, Integer>();
+        final int[] ends = new int[keys.length];
+        for (int g = 0; g < keys.length; ++g) {
+            rank.put(keys[g], g);
+            ends[g] = (g == 0 ? 0 : ends[g - 1]) + counts.get(keys[g]);
+        }
+        final int[] oldRanks = new int[genreKeys.length];
+        for (int g = 0; g < genreKeys.length; ++g) {
+            oldRanks[g] = oldCounts[g] > 0 ? rank.get(genreKeys[g]) : -1;
+        }
+        final int[] addedRanks = new int[a];
+        for (int r = 0; r < a; ++r) {
+            addedRanks[r] = rank.get(addedKeys[r]);
+        }
+
+        // Scatter the rows to their genre's range, in file order
+        final int size = keys.length == 0 ? 0 : ends[keys.length - 1];
+        final int[] next = new int[keys.length];
+        for (int g = 1; g < next.length; ++g) {
+            next[g] = ends[g - 1];
+        }
+        final String[] newNames = new String[size];
+        final String[] newFileNames = new String[size];
+        final int[] newDirIds = new int[size];
+        final int[] newArtistIds = new int[size];
+        final int[] newLabelIds = new int[size];
+        for (int i = 0; i < numRows; ++i) {
+            final int t = order[i];
+            if (t >= 0) {
+                final int to = next[oldRanks[oldGenres[t]]]++;
+                newNames[to] = names[t];
+                newFileNames[to] = fileNames[t];
+                newDirIds[to] = dirIds[t];
+                newArtistIds[to] = artistIds[t];
+                newLabelIds[to] = labelIds[t];
+            } else {
+                final int r = -1 - t;
+                final int to = next[addedRanks[r]]++;
+                newNames[to] = added.get(r)[0];
+                newFileNames[to] = addedFileNames[r];
+                newDirIds[to] = addedDirs[r];
+                newArtistIds[to] = addedArtists[r];
+                newLabelIds[to] = addedLabels[r];
+            }
+        }
+
+        return new TrackCatalog(newNames, newFileNames, newDirIds, newArtistIds,
+                                newLabelIds, Builder.keys(dirIndex),
+                                Builder.keys(artistIndex), Builder.keys(labelIndex),
+                                keys, ends);
+    }
+
+    /* Entries of the three dictionaries, used or not. */
+    final int dictionarySize() {
+        return dirs.length + artists.length + labels.length;
+    }
+
+    /* Dictionary entries no track uses, left by patch(). Runtime: O(n + D). */
+    final int unusedEntries() {
+        return unused(dirIds, dirs.length) + unused(artistIds, artists.length) +
+               unused(labelIds, labels.length);
+    }
+
+    private static int unused(int[] ids, int dictionarySize) {
+        final boolean[] used = new boolean[dictionarySize];
+        int numUsed = 0;
+        for (final int id : ids) {
+            if (!used[id]) {
+                used[id] = true;
+                ++numUsed;
+            }
+        }
+        return dictionarySize - numUsed;
+    }
+
+    /* Dictionary of an id-ordered column, for adding to it. */
+    private static Map<String, Integer> index(String[] values) {
+        final Map<String, Integer> index = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < values.length; ++i) {
+            index.put(values[i], i);
+        }
+        return index;
+    }
+
+    /* Writes the catalog in the layout read by read(). */
+    final void write(DataOutput out) throws IOException {
+        out.writeInt(names.length);
+        writeStrings(out, dirs);
+        writeStrings(out, artists);
+        writeStrings(out, labels);
+        writeStrings(out, genreKeys);
+        writeInts(out, genreEnds);
+        writeStrings(out, names);
+        writeStrings(out, fileNames);
+        writeInts(out, dirIds);
+        writeInts(out, artistIds);
+        writeInts(out, labelIds);
+    }
+
+    /* Reads a catalog written by write(), starting at in's position. Throws
+     * IllegalArgumentException, or BufferUnderflowException if truncated,
+     * when the bytes don't hold a consistent catalog. */
+    static TrackCatalog read(ByteBuffer in) {
+        final int size = in.getInt();
+        final byte[] scratch = new byte[1 << 10];
+        final String[] dirs = readStrings(in, scratch);
+        final String[] artists = readStrings(in, scratch);
+        final String[] labels = readStrings(in, scratch);
+        final String[] genreKeys = readStrings(in, scratch);
+        final int[] genreEnds = readInts(in);
+        final String[] names = readStrings(in, scratch);
+        final String[] fileNames = readStrings(in, scratch);
+        final int[] dirIds = readInts(in);
+        final int[] artistIds = readInts(in);
+        final int[] labelIds = readInts(in);
+        if (names.length != size || fileNames.length != size ||
+                dirIds.length != size || artistIds.length != size ||
+                labelIds.length != size || genreEnds.length != genreKeys.length) {
+            throw new IllegalArgumentException("Inconsistent catalog columns");
+        }
+        checkIds(dirIds, dirs.length);
+        checkIds(artistIds, artists.length);
+        checkIds(labelIds, labels.length);
+        for (int g = 0; g < genreEnds.length; ++g) {
+            if (genreEnds[g] < (g == 0 ? 0 : genreEnds[g - 1])) {
+                throw new IllegalArgumentException("Genre ranges out of order");
+            }
+        }
+        if ((genreEnds.length == 0 ? 0 : genreEnds[genreEnds.length - 1]) != size) {
+            throw new IllegalArgumentException("Genre ranges don't cover the tracks");
+        }
+        final TrackCatalog catalog = new TrackCatalog(names, fileNames, dirIds, artistIds,
+                                                      labelIds, dirs, artists, labels,
+                                                      genreKeys, genreEnds);
+        if (catalog.genreIndices.size() != genreKeys.length) {
+            throw new IllegalArgumentException("Repeated genre");
+        }
+        return catalog;
+    }
+
+    private static void checkIds(int[] ids, int dictionarySize) {
+        for (final int id : ids) {
+            if (id < 0 || id >= dictionarySize) {
+                throw new IllegalArgumentException("Id outside its dictionary");
+            }
+        }
+    }
+
+    /* Reads a count of items at least itemBytes long each, checking that
+     * they can fit in what is left of in. */
+    private static int readCount(ByteBuffer in, int itemBytes) {
+        final int count = in.getInt();
+        if (count < 0 || count > in.remaining() / itemBytes) {
+            throw new IllegalArgumentException("Bad length " + count);
+        }
+        return count;
+    }
+
+    private static void writeStrings(DataOutput out, String[] strings)
+            throws IOException {
+        out.writeInt(strings.length);
+        for (final String string : strings) {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer in, byte[] scratch) {
+        final String[] strings = new String[readCount(in, 4)];
+        for (int i = 0; i < strings.length; ++i) {
+            final int length = readCount(in, 1);
+            final byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+            in.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    private static void writeInts(DataOutput out, int[] ints) throws IOException {
+        out.writeInt(ints.length);
+        for (final int i : ints) {
+            out.writeInt(i);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        final int[] ints = new int[readCount(in, 4)];
+        in.asIntBuffer().get(ints);
+        in.position(in.position() + ints.length * 4);
+        return ints;
+    }
+
+    /**
+     * Collects parsed tracks in any order. build() groups them by genre
+     * with a counting sort: O(n) for the tracks plus O(G log G) to put
+     * the genres in alphabetical order, tracks keeping their file order
+     * within a genre.
+     */
+    static final class Builder implements PlaylistParser.Sink {
+        private String[] names = new String[1024];
+        private String[] fileNames = new String[1024];
+        private int[] dirIds = new int[1024];
+        private int[] artistIds = new int[1024];
+        private int[] labelIds = new int[1024];
+        private int[] genreIds = new int[1024];
+        private int size;
+        // Insertion ordered, so key order is id order
+        private final Map<String, Integer> dirs = new LinkedHashMap<String, Integer>();
+        private final Map<String, Integer> artists = new LinkedHashMap<String, Integer>();
+        private final Map<String, Integer> labels = new LinkedHashMap<String, Integer>();
+        private final Map<String, Integer> genres = new LinkedHashMap<String, Integer>();
+        private String lastLabel;
+        private int lastGenre;
+
+        public void track(String name, String artist, String genre, String location) {
+            if (size == names.length) {
+                final int capacity = size * 2;
+                names = Arrays.copyOf(names, capacity);
+                fileNames = Arrays.copyOf(fileNames, capacity);
+                dirIds = Arrays.copyOf(dirIds, capacity);
+                artistIds = Arrays.copyOf(artistIds, capacity);
+                labelIds = Arrays.copyOf(labelIds, capacity);
+                genreIds = Arrays.copyOf(genreIds, capacity);
+            }
+
+            // Both Mac and Windows iTunes paths can appear
+            final int slash = dirLength(location);
+            names[size] = name;
+            fileNames[size] = location.substring(slash);
+            dirIds[size] = id(dirs, location.substring(0, slash));
+            artistIds[size] = id(artists, artist);
+            labelIds[size] = id(labels, genre);
+
+            // Consecutive rows usually share a genre
+            if (!genre.equals(lastLabel)) {
+                lastLabel = genre;
+                lastGenre = id(genres, genre.toUpperCase());
+            }
+            genreIds[size++] = lastGenre;
+        }
+
+        TrackCatalog build() {
+            // Markov rows are in alphabetical order of genre
+            final String[] genreKeys = keys(genres);
+            Arrays.sort(genreKeys);
+            final int[] rank = new int[genreKeys.length];
+            for (int g = 0; g < genreKeys.length; ++g) {
+                rank[genres.get(genreKeys[g])] = g;
+            }
+
+            // Count each genre's tracks, then turn counts into end offsets
+            final int[] genreEnds = new int[genreKeys.length];
+            for (int t = 0; t < size; ++t) {
+                ++genreEnds[rank[genreIds[t]]];
+            }
+            for (int g = 1; g < genreEnds.length; ++g) {
+                genreEnds[g] += genreEnds[g - 1];
+            }
+
+            // Scatter tracks to their genre's range, in file order
+            final int[] next = new int[genreKeys.length];
+            for (int g = 1; g < next.length; ++g) {
+                next[g] = genreEnds[g - 1];
+            }
+            final String[] sortedNames = new String[size];
+            final String[] sortedFileNames = new String[size];
+            final int[] sortedDirIds = new int[size];
+            final int[] sortedArtistIds = new int[size];
+            final int[] sortedLabelIds = new int[size];
+            for (int t = 0; t < size; ++t) {
+                final int to = next[rank[genreIds[t]]]++;
+                sortedNames[to] = names[t];
+                sortedFileNames[to] = fileNames[t];
+                sortedDirIds[to] = dirIds[t];
+                sortedArtistIds[to] = artistIds[t];
+                sortedLabelIds[to] = labelIds[t];
+            }
+
+            return new TrackCatalog(sortedNames, sortedFileNames, sortedDirIds,
+                                    sortedArtistIds, sortedLabelIds,
+                                    keys(dirs), keys(artists), keys(labels),
+                                    genreKeys, genreEnds);
+        }
+
+        private static String[] keys(Map<String, Integer> dictionary) {
+            return dictionary.keySet().toArray(new String[dictionary.size()]);
+        }
+
+        private static int id(Map<String, Integer> dictionary, String value) {
+            Integer id = dictionary.get(value);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.put(value, id);
+            }
+            return id;
+        }
+    }
+}
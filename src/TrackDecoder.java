@@ -0,0 +1,126 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.decoder.SampleBuffer;
+
+
+/**
+ * Decodes an MP3 stream one frame at a time with the JLayer decoder,
+ * into signed 16-bit little-endian PCM ready for a SourceDataLine. This
+ * is what JLayer's Player does internally, minus owning the audio device,
+ * so the caller decides which line the samples go to.
+ *
+ * The file is read from a MappedTrack, so decoding can start at, or seek
+ * to, any frame. A layer III frame may use bits stored in the frames
+ * before it, so decoding restarts PRIMING_FRAMES early and drops what
+ * those frames decode to.
+ */
+final class TrackDecoder implements Closeable {
+    private static final int PRIMING_FRAMES = 4;
+
+    private final MappedTrack source;
+    private Bitstream bitstream;
+    private Decoder decoder;
+    private int frame;                      // Number of the next frame
+    private byte[] pcm = new byte[4608];    // One stereo MPEG-1 layer III frame
+    private int pcmLength;
+    private AudioFormat format;
+
+    TrackDecoder(MappedTrack source, int frame) throws IOException {
+        this.source = source;
+        seek(frame);
+    }
+
+    /* Decoder for a file, read through the TrackCache. */
+    static TrackDecoder open(String filename) throws IOException {
+        return open(filename, 0);
+    }
+
+    static TrackDecoder open(String filename, int frame) throws IOException {
+        return new TrackDecoder(TrackCache.open(filename), frame);
+    }
+
+    /* Continues decoding from frame. Runtime: O(1) once the file is indexed,
+     * plus decoding the priming frames. */
+    final void seek(int frame) throws IOException {
+        close();
+        final int from = Math.max(0, frame - PRIMING_FRAMES);
+        bitstream = new Bitstream(source.stream(from));
+        decoder = new Decoder();    // It keeps the bitstream it first decodes
+        this.frame = from;
+        while (this.frame < frame && nextFrame()) {
+            // Primes the decoder, output is dropped
+        }
+    }
+
+    /* Number of the frame nextFrame() decodes next. */
+    final int frame() {
+        return frame;
+    }
+
+    final MappedTrack source() {
+        return source;
+    }
+
+    /* Decodes the next frame into pcm(), false at the end of the stream. */
+    final boolean nextFrame() throws IOException {
+        try {
+            final Header header = bitstream.readFrame();
+            if (header == null) {
+                return false;
+            }
+            final SampleBuffer out = (SampleBuffer) decoder.decodeFrame(header, bitstream);
+            bitstream.closeFrame();
+            ++frame;
+
+            if (format == null) {
+                format = new AudioFormat(decoder.getOutputFrequency(), 16,
+                                         decoder.getOutputChannels(), true, false);
+            }
+            final short[] samples = out.getBuffer();
+            final int n = out.getBufferLength();
+            if (pcm.length < n * 2) {
+                pcm = new byte[n * 2];
+            }
+            for (int i = 0, j = 0; i < n; ++i) {
+                pcm[j++] = (byte) samples[i];
+                pcm[j++] = (byte) (samples[i] >>> 8);
+            }
+            pcmLength = n * 2;
+            return true;
+        } catch (JavaLayerException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /* PCM of the last decoded frame, valid until the next call to nextFrame(). */
+    final byte[] pcm() {
+        return pcm;
+    }
+
+    final int pcmLength() {
+        return pcmLength;
+    }
+
+    /* Output format, known once the first frame is decoded. */
+    final AudioFormat format() {
+        return format;
+    }
+
+    public void close() {
+        if (bitstream == null) {
+            return ;
+        }
+        try {
+            bitstream.close();
+        } catch (JavaLayerException e) {
+            // Nothing left to release
+        }
+    }
+}
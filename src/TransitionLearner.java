@@ -0,0 +1,179 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Learns genre transition probabilities from the order songs were played
+ * in. Plays are fed one at a time, so a log is read in a single pass, and
+ * only one counter per distinct (genre, next genre) pair is kept: memory
+ * is bounded by the number of genres, not the length of the log. Plays
+ * more than SESSION_GAP apart are not counted as a transition.
+ *
+ * Probabilities use additive smoothing over the G genres transitioned
+ * from or to:
+ *   P(next | genre) = (count(genre, next) + alpha) / (count(genre) + alpha * G)
+ * and are written in MarkovChain's sparse text format straight from the
+ * counts: the genres never seen after a genre share one "*" entry, so
+ * the file and the memory to write it grow with the pairs seen, not G^2.
+ *
+ *   java TransitionLearner history.log chain.txt [alpha]
+ */
+final public class TransitionLearner {
+    static final long SESSION_GAP = 30 * 60 * 1000L;
+    static final double DEFAULT_ALPHA = 0.1;
+
+    private final double alpha;
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> genres = new ArrayList<String>();
+    private final Map<Long, long[]> counts = new HashMap<Long, long[]>();
+    private long[] rowTotals = new long[16];
+    private int last = -1;
+    private long lastTime;
+    private long transitions;
+
+    TransitionLearner(double alpha) {
+        this.alpha = alpha;
+    }
+
+    /* Counts the transition from the previous play to this one. Runtime: O(1). */
+    final synchronized void observe(long time, String genre) {
+        Integer id = ids.get(genre);
+        if (id == null) {
+            id = genres.size();
+            ids.put(genre, id);
+            genres.add(genre);
+            if (id == rowTotals.length) {
+                rowTotals = Arrays.copyOf(rowTotals, id * 2);
+            }
+        }
+
+        if (last != -1 && time - lastTime <= SESSION_GAP) {
+            final Long pair = ((long) last << 32) | id;
+            final long[] count = counts.get(pair);
+            if (count == null) {
+                counts.put(pair, new long[] { 1 });
+            } else {
+                ++count[0];
+            }
+            ++rowTotals[last];
+            ++transitions;
+        }
+        last = id;
+        lastTime = time;
+    }
+
+    final synchronized long transitions() {
+        return transitions;
+    }
+
+    /* Observes every well-formed line of a PlayHistory log, in one pass. */
+    final void read(BufferedReader log) throws IOException {
+        String line;
+        while ((line = log.readLine()) != null) {
+            final int tab = line.indexOf('\t');
+            final int tab2 = line.indexOf('\t', tab + 1);
+            if (tab <= 0 || tab2 < 0) {
+                continue;
+            }
+            try {
+                observe(Long.parseLong(line.substring(0, tab)),
+                        line.substring(tab + 1, tab2));
+            } catch (NumberFormatException e) {
+                // Partly written line, e.g. after a crash
+            }
+        }
+    }
+
+    /* Writes the smoothed chain in the sparse format, replacing out atomically. */
+    final void write(File out) throws IOException {
+        final File temp = new File(out.getPath() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            write(w);
+        }
+        if (!temp.renameTo(out)) {
+            out.delete();
+            if (!temp.renameTo(out)) {
+                throw new IOException("Could not replace " + out);
+            }
+        }
+    }
+
+    final synchronized void write(Writer w) throws IOException {
+        // Pairs in (genre, next genre) order, so each row's are together
+        final long[] pairs = new long[counts.size()];
+        int p = 0;
+        for (final Long pair : counts.keySet()) {
+            pairs[p++] = pair;
+        }
+        Arrays.sort(pairs);
+
+        // Genres the file names: those left, and those followed another
+        final boolean[] named = new boolean[genres.size()];
+        for (final long pair : pairs) {
+            named[(int) (pair >>> 32)] = true;
+            named[(int) pair] = true;
+        }
+        int n = 0;
+        for (final boolean name : named) {
+            if (name) {
+                ++n;
+            }
+        }
+
+        // Genres never left have no row, any genre may follow them
+        w.write(MarkovChain.SPARSE_HEADER);
+        w.write('\n');
+        for (int start = 0, end; start < pairs.length; start = end) {
+            final int from = (int) (pairs[start] >>> 32);
+            for (end = start + 1; end < pairs.length &&
+                     (int) (pairs[end] >>> 32) == from; ++end);
+            final double total = rowTotals[from] + alpha * n;
+            w.write(genres.get(from));
+            for (int e = start; e < end; ++e) {
+                w.write('\t');
+                w.write(genres.get((int) pairs[e]));
+                w.write('\t');
+                w.write(Double.toString((counts.get(pairs[e])[0] + alpha) / total));
+            }
+            if (end - start < n && alpha > 0.0) {
+                w.write('\t');
+                w.write(MarkovChain.OTHER_GENRES);
+                w.write('\t');
+                w.write(Double.toString(alpha / total));
+            }
+            w.write('\n');
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java TransitionLearner " +
+                               "<history log> <markov output> [alpha]");
+            System.exit(2);
+        }
+        final double alpha = args.length == 3 ? Double.parseDouble(args[2])
+                                              : DEFAULT_ALPHA;
+        final TransitionLearner learner = new TransitionLearner(alpha);
+        try (BufferedReader log = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(args[0]), StandardCharsets.UTF_8))) {
+            learner.read(log);
+        }
+        learner.write(new File(args[1]));
+        System.out.println("Learned " + learner.transitions() +
+                           " transitions into " + args[1]);
+    }
+}